@@ -0,0 +1,75 @@
+package com.github.netsugo.cpabej.bench;
+
+import com.github.netsugo.cpabej.bswabe.Bswabe;
+import com.github.netsugo.cpabej.bswabe.BswabeBackend;
+import com.github.netsugo.cpabej.bswabe.BswabeCph;
+import com.github.netsugo.cpabej.bswabe.BswabeCphKey;
+import com.github.netsugo.cpabej.bswabe.BswabeCurve;
+import com.github.netsugo.cpabej.bswabe.BswabeMsk;
+import com.github.netsugo.cpabej.bswabe.BswabePrv;
+import com.github.netsugo.cpabej.bswabe.BswabePub;
+import it.unisa.dia.gas.jpbc.Element;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Pure Java against native libpbc on the default curve: the primitives,
+ * then encrypt and decrypt under a 2of4 gate. PBC is experimental (see
+ * BswabeBackend); its runs measure speed only. The PBC runs fail in setup on
+ * hosts without libpbc and the jpbc-pbc native library; pass
+ * -Djava.library.path to the forked JVM to point at them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BackendBenchmark {
+    @Param({"JAVA", "PBC"})
+    public BswabeBackend backend;
+
+    private BswabePub pub;
+    private Element g1;
+    private Element g2;
+    private Element zr;
+    private String policy;
+    private BswabePrv prv;
+    private BswabeCph cph;
+
+    @Setup
+    public void setup() throws Exception {
+        if (!backend.isAvailable()) {
+            throw new IllegalStateException(backend + " backend is not available on this host");
+        }
+        pub = new BswabePub();
+        BswabeMsk msk = new BswabeMsk();
+        Bswabe.setup(pub, msk, BswabeCurve.DEFAULT.params, backend);
+
+        g1 = pub.p.getG1().newRandomElement().getImmutable();
+        g2 = pub.p.getG2().newRandomElement().getImmutable();
+        zr = pub.p.getZr().newRandomElement().getImmutable();
+
+        policy = Policies.threshold(2, 4);
+        prv = Bswabe.keygen(pub, msk, new String[]{Policies.attribute(0), Policies.attribute(1)});
+        cph = Bswabe.encrypt(pub, policy).cph;
+    }
+
+    @Benchmark
+    public Element pairing() {
+        return pub.p.pairing(g1, g2);
+    }
+
+    @Benchmark
+    public Element powZn() {
+        return g1.powZn(zr);
+    }
+
+    @Benchmark
+    public BswabeCphKey encrypt() throws Exception {
+        return Bswabe.encrypt(pub, policy);
+    }
+
+    @Benchmark
+    public Element decrypt() {
+        return Bswabe.decrypt(pub, prv, cph);
+    }
+}
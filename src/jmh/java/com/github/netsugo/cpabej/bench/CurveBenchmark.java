@@ -0,0 +1,76 @@
+package com.github.netsugo.cpabej.bench;
+
+import com.github.netsugo.cpabej.bswabe.Bswabe;
+import com.github.netsugo.cpabej.bswabe.BswabeCph;
+import com.github.netsugo.cpabej.bswabe.BswabeCphKey;
+import com.github.netsugo.cpabej.bswabe.BswabeCurve;
+import com.github.netsugo.cpabej.bswabe.BswabeMsk;
+import com.github.netsugo.cpabej.bswabe.BswabePrv;
+import com.github.netsugo.cpabej.bswabe.BswabePub;
+import com.github.netsugo.cpabej.bswabe.SerializeUtils;
+import it.unisa.dia.gas.jpbc.Element;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The curve presets side by side: the two primitives that dominate CP-ABE,
+ * then encrypt and decrypt under a 2of4 gate. The serialize benchmarks
+ * double as a size comparison, since their allocation per operation is
+ * the compact ciphertext length plus a constant.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CurveBenchmark {
+    @Param({"A_160", "A_256", "A1_512", "E_160"})
+    public BswabeCurve curve;
+
+    private BswabePub pub;
+    private Element g1;
+    private Element g2;
+    private Element zr;
+    private String policy;
+    private BswabePrv prv;
+    private BswabeCph cph;
+
+    @Setup
+    public void setup() throws Exception {
+        pub = new BswabePub();
+        BswabeMsk msk = new BswabeMsk();
+        Bswabe.setup(pub, msk, curve);
+
+        g1 = pub.p.getG1().newRandomElement().getImmutable();
+        g2 = pub.p.getG2().newRandomElement().getImmutable();
+        zr = pub.p.getZr().newRandomElement().getImmutable();
+
+        policy = Policies.threshold(2, 4);
+        prv = Bswabe.keygen(pub, msk, new String[]{Policies.attribute(0), Policies.attribute(1)});
+        cph = Bswabe.encrypt(pub, policy).cph;
+    }
+
+    @Benchmark
+    public Element pairing() {
+        return pub.p.pairing(g1, g2);
+    }
+
+    @Benchmark
+    public Element powZn() {
+        return g1.powZn(zr);
+    }
+
+    @Benchmark
+    public BswabeCphKey encrypt() throws Exception {
+        return Bswabe.encrypt(pub, policy);
+    }
+
+    @Benchmark
+    public Element decrypt() {
+        return Bswabe.decrypt(pub, prv, cph);
+    }
+
+    @Benchmark
+    public byte[] serializeCph() {
+        return SerializeUtils.serializeBswabeCph(cph, true);
+    }
+}
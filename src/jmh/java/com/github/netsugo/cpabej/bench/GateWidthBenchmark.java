@@ -0,0 +1,75 @@
+package com.github.netsugo.cpabej.bench;
+
+import com.github.netsugo.cpabej.bswabe.Bswabe;
+import com.github.netsugo.cpabej.bswabe.BswabeCompiledPolicy;
+import com.github.netsugo.cpabej.bswabe.BswabeCph;
+import com.github.netsugo.cpabej.bswabe.BswabeCphKey;
+import com.github.netsugo.cpabej.bswabe.BswabeCurve;
+import com.github.netsugo.cpabej.bswabe.BswabeDecPlan;
+import com.github.netsugo.cpabej.bswabe.BswabeMsk;
+import com.github.netsugo.cpabej.bswabe.BswabePrv;
+import com.github.netsugo.cpabej.bswabe.BswabePub;
+import it.unisa.dia.gas.jpbc.Element;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A single k-of-n gate at growing widths. plan isolates the gate arithmetic
+ * done at decrypt time (satisfying set and Lagrange coefficients, no
+ * pairings); encrypt includes the share evaluation, but is dominated by one
+ * pair of exponentiations per leaf, so it is run with fixed-base tables.
+ * decrypt compares jPBC's pairing maps on the default curve: the default
+ * NAF projective map computes a product pairing pair by pair, the affine
+ * map accumulates the Miller loops and shares one final exponentiation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GateWidthBenchmark {
+    @Param({"2of8", "8of32", "50of200"})
+    public String gate;
+
+    @Param({"naf-miller-projective", "miller-affine"})
+    public String method;
+
+    private BswabePub pub;
+    private BswabePrv prv;
+    private BswabeCompiledPolicy policy;
+    private BswabeCph cph;
+
+    @Setup
+    public void setup() throws Exception {
+        String[] k_n = gate.split("of");
+        int k = Integer.parseInt(k_n[0]);
+        int n = Integer.parseInt(k_n[1]);
+
+        pub = new BswabePub();
+        BswabeMsk msk = new BswabeMsk();
+        Bswabe.setup(pub, msk, BswabeCurve.DEFAULT.params + "\nmethod " + method + "\n");
+        Bswabe.preprocess(pub);
+
+        /* the key holds the last k attributes, so planning has to skip the first n - k leaves */
+        String[] attrs = new String[k];
+        for (int i = 0; i < k; i++) attrs[i] = Policies.attribute(n - k + i);
+        prv = Bswabe.keygen(pub, msk, attrs);
+
+        policy = Bswabe.compile(pub, Policies.threshold(k, n));
+        cph = Bswabe.encrypt(pub, policy).cph;
+    }
+
+    @Benchmark
+    public BswabeDecPlan plan() {
+        return Bswabe.plan(pub, prv, cph.p);
+    }
+
+    @Benchmark
+    public BswabeCphKey encrypt() {
+        return Bswabe.encrypt(pub, policy);
+    }
+
+    @Benchmark
+    public Element decrypt() {
+        return Bswabe.decrypt(pub, prv, cph);
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.netsugo.cpabej.bench;
+
+import com.github.netsugo.cpabej.AESCoder;
+import com.github.netsugo.cpabej.AESGCMCoder;
+import com.github.netsugo.cpabej.Common;
+import com.github.netsugo.cpabej.Cpabe;
+import com.github.netsugo.cpabej.CpabeMasterKey;
+import com.github.netsugo.cpabej.CpabePolicy;
+import com.github.netsugo.cpabej.CpabePrivateKey;
+import com.github.netsugo.cpabej.CpabePublicKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The symmetric and packing steps by payload size, and the whole Cpabe
+ * pipeline under a single-leaf policy, where CP-ABE is the smallest fixed
+ * cost. Subtracting the symmetric step from the pipeline gives the CP-ABE
+ * and serialization overhead per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PayloadBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int payload;
+
+    private byte[] seed;
+    private byte[] plain;
+    private byte[] legacy;
+    private byte[] gcm;
+    private byte[] cphBuf;
+    private byte[] mBuf;
+    private byte[] packed;
+    private CpabePolicy policy;
+    private CpabePrivateKey privateKey;
+    private byte[] encrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(1);
+        seed = new byte[128];
+        random.nextBytes(seed);
+        plain = new byte[payload];
+        random.nextBytes(plain);
+
+        legacy = AESCoder.encrypt(seed, plain);
+        gcm = AESGCMCoder.encrypt(seed, plain);
+
+        byte[][] keys = Cpabe.setup();
+        CpabePublicKey publicKey = CpabePublicKey.load(keys[Cpabe.SETUP_PUBLIC]);
+        CpabeMasterKey masterKey = CpabeMasterKey.load(publicKey, keys[Cpabe.SETUP_MASTER]);
+        policy = CpabePolicy.compile(publicKey, Policies.attribute(0));
+        privateKey = CpabePrivateKey.load(publicKey, Cpabe.keygen(masterKey, Policies.attribute(0)));
+        encrypted = Cpabe.encrypt(policy, plain);
+
+        ByteBuffer[] parts = Common.unpackCpabeViews(encrypted);
+        cphBuf = new byte[parts[1].remaining()];
+        parts[1].get(cphBuf);
+        mBuf = Common.formatHeader(Common.FORMAT_AES_GCM);
+        packed = Common.packCpabe(mBuf, cphBuf, gcm);
+    }
+
+    @Benchmark
+    public byte[] legacyEncrypt() throws Exception {
+        return AESCoder.encrypt(seed, plain);
+    }
+
+    @Benchmark
+    public byte[] legacyDecrypt() throws Exception {
+        return AESCoder.decrypt(seed, legacy);
+    }
+
+    @Benchmark
+    public byte[] gcmEncrypt() throws Exception {
+        return AESGCMCoder.encrypt(seed, plain);
+    }
+
+    @Benchmark
+    public byte[] gcmDecrypt() throws Exception {
+        return AESGCMCoder.decrypt(seed, gcm);
+    }
+
+    @Benchmark
+    public byte[] pack() throws Exception {
+        return Common.packCpabe(mBuf, cphBuf, gcm);
+    }
+
+    @Benchmark
+    public ByteBuffer[] unpack() throws Exception {
+        return Common.unpackCpabeViews(packed);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return Cpabe.encrypt(policy, plain);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws Exception {
+        return Cpabe.decrypt(privateKey, encrypted);
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.netsugo.cpabej.bench;
+
+import java.util.StringJoiner;
+
+final class Policies {
+    private Policies() {
+    }
+
+    static String attribute(int i) {
+        return "attr" + i;
+    }
+
+    /* space separated attributes attr0 .. attr{n-1} */
+    static String attributes(int n) {
+        StringJoiner joiner = new StringJoiner(" ");
+        for (int i = 0; i < n; i++) joiner.add(attribute(i));
+        return joiner.toString();
+    }
+
+    /* a single k-of-n gate over attr0 .. attr{n-1}, or a bare leaf when n is 1 */
+    static String threshold(int k, int n) {
+        if (n == 1) return attribute(0);
+        return attributes(n) + " " + k + "of" + n;
+    }
+}
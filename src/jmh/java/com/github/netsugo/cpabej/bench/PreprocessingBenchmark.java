@@ -0,0 +1,41 @@
+package com.github.netsugo.cpabej.bench;
+
+import com.github.netsugo.cpabej.bswabe.Bswabe;
+import com.github.netsugo.cpabej.bswabe.BswabeCphKey;
+import com.github.netsugo.cpabej.bswabe.BswabeMsk;
+import com.github.netsugo.cpabej.bswabe.BswabePub;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Encryption with and without fixed-base tables. Each leaf costs one G1
+ * exponentiation of g, so dividing the difference between two leaf counts by
+ * the number of extra leaves gives the per-leaf speedup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PreprocessingBenchmark {
+    @Param({"1", "8", "32"})
+    public int leaves;
+
+    @Param({"false", "true"})
+    public boolean preprocess;
+
+    private BswabePub pub;
+    private String policy;
+
+    @Setup
+    public void setup() {
+        pub = new BswabePub();
+        Bswabe.setup(pub, new BswabeMsk());
+        if (preprocess) Bswabe.preprocess(pub);
+        policy = Policies.threshold(1, leaves);
+    }
+
+    @Benchmark
+    public BswabeCphKey encrypt() throws Exception {
+        return Bswabe.encrypt(pub, policy);
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.netsugo.cpabej.bench;
+
+import com.github.netsugo.cpabej.bswabe.Bswabe;
+import com.github.netsugo.cpabej.bswabe.BswabeCph;
+import com.github.netsugo.cpabej.bswabe.BswabeCphKey;
+import com.github.netsugo.cpabej.bswabe.BswabeMsk;
+import com.github.netsugo.cpabej.bswabe.BswabePrv;
+import com.github.netsugo.cpabej.bswabe.BswabePub;
+import com.github.netsugo.cpabej.bswabe.SerializeUtils;
+import it.unisa.dia.gas.jpbc.Element;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Every CP-ABE step after setup, over one k-of-n gate. gate picks k: "or" is
+ * 1ofn, "half" is (n/2)ofn and "and" is nofn. The key holds the k attributes
+ * decryption needs plus extraAttributes unrelated ones, which only make
+ * keygen, delegate and key serialization bigger.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SchemeBenchmark {
+    @Param({"1", "8", "32"})
+    public int leaves;
+
+    @Param({"or", "half", "and"})
+    public String gate;
+
+    @Param({"0", "16"})
+    public int extraAttributes;
+
+    private BswabePub pub;
+    private BswabeMsk msk;
+    private String policy;
+    private String[] attrs;
+    private String[] delegated;
+    private BswabePrv prv;
+    private BswabeCph cph;
+    private byte[] prvBuf;
+    private byte[] cphBuf;
+
+    @Setup
+    public void setup() throws Exception {
+        int k = gate.equals("or") ? 1 : gate.equals("half") ? Math.max(1, leaves / 2) : leaves;
+
+        pub = new BswabePub();
+        msk = new BswabeMsk();
+        Bswabe.setup(pub, msk);
+
+        policy = Policies.threshold(k, leaves);
+        attrs = new String[k + extraAttributes];
+        for (int i = 0; i < k; i++) attrs[i] = Policies.attribute(i);
+        for (int i = 0; i < extraAttributes; i++) attrs[k + i] = "extra" + i;
+        delegated = new String[k];
+        System.arraycopy(attrs, 0, delegated, 0, k);
+
+        prv = Bswabe.keygen(pub, msk, attrs);
+        cph = Bswabe.encrypt(pub, policy).cph;
+        prvBuf = SerializeUtils.serializeBswabePrv(prv, true);
+        cphBuf = SerializeUtils.serializeBswabeCph(cph, true);
+    }
+
+    @Benchmark
+    public BswabePrv keygen() throws Exception {
+        return Bswabe.keygen(pub, msk, attrs);
+    }
+
+    @Benchmark
+    public BswabePrv delegate() throws Exception {
+        return Bswabe.delegate(pub, prv, delegated);
+    }
+
+    @Benchmark
+    public BswabeCphKey encrypt() throws Exception {
+        return Bswabe.encrypt(pub, policy);
+    }
+
+    @Benchmark
+    public Element decrypt() {
+        return Bswabe.decrypt(pub, prv, cph);
+    }
+
+    @Benchmark
+    public byte[] serializeCph() {
+        return SerializeUtils.serializeBswabeCph(cph, true);
+    }
+
+    @Benchmark
+    public BswabeCph unserializeCph() {
+        return SerializeUtils.unserializeBswabeCph(pub, cphBuf);
+    }
+
+    @Benchmark
+    public byte[] serializePrv() {
+        return SerializeUtils.serializeBswabePrv(prv, true);
+    }
+
+    @Benchmark
+    public BswabePrv unserializePrv() {
+        return SerializeUtils.unserializeBswabePrv(pub, prvBuf);
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.netsugo.cpabej.bench;
+
+import com.github.netsugo.cpabej.bswabe.Bswabe;
+import com.github.netsugo.cpabej.bswabe.BswabeMsk;
+import com.github.netsugo.cpabej.bswabe.BswabePub;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Key pair generation, which depends on nothing but the curve */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SetupBenchmark {
+    @Benchmark
+    public BswabePub setup() {
+        BswabePub pub = new BswabePub();
+        Bswabe.setup(pub, new BswabeMsk());
+        return pub;
+    }
+}
@@ -2,10 +2,26 @@ package com.github.netsugo.cpabej;
 
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
 public class AESCoder {
+    /* plaintext bytes handled per step by the streaming methods */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static Cipher newCipher(byte[] seed, int mode) throws Exception {
+        byte[] raw = getRawKey(seed);
+        SecretKeySpec skeySpec = new SecretKeySpec(raw, "AES");
+        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        cipher.init(mode, skeySpec);
+        return cipher;
+    }
+
     private static byte[] getRawKey(byte[] seed) throws NoSuchAlgorithmException {
         KeyGenerator kgen = KeyGenerator.getInstance("AES");
         SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
@@ -18,11 +34,19 @@ public class AESCoder {
 
     public static byte[] multiCrypt(byte[] seed, byte[] data, int mode) throws AESException {
         try {
-            byte[] raw = getRawKey(seed);
-            SecretKeySpec skeySpec = new SecretKeySpec(raw, "AES");
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-            cipher.init(mode, skeySpec);
-            return cipher.doFinal(data);
+            return newCipher(seed, mode).doFinal(data);
+        } catch (Exception e) {
+            throw new AESException(e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Buffer variant: consumes in and writes to out, which needs in.remaining()
+     * plus one block of room. Returns the number of bytes written.
+     */
+    public static int multiCrypt(byte[] seed, ByteBuffer in, ByteBuffer out, int mode) throws AESException {
+        try {
+            return newCipher(seed, mode).doFinal(in, out);
         } catch (Exception e) {
             throw new AESException(e.getMessage(), e);
         }
@@ -35,4 +59,48 @@ public class AESCoder {
     public static byte[] decrypt(byte[] seed, byte[] ciphertext) throws AESException {
         return multiCrypt(seed, ciphertext, Cipher.DECRYPT_MODE);
     }
-}
\ No newline at end of file
+
+    /*
+     * Same transformation as multiCrypt, but reads the input in CHUNK_SIZE
+     * pieces and writes each result as soon as it is ready, so memory use does
+     * not depend on the length of the stream.
+     */
+    public static void multiCrypt(byte[] seed, InputStream in, OutputStream out, int mode) throws AESException, IOException {
+        Cipher cipher;
+        try {
+            cipher = newCipher(seed, mode);
+        } catch (Exception e) {
+            throw new AESException(e.getMessage(), e);
+        }
+
+        byte[] inBuf = new byte[CHUNK_SIZE];
+        byte[] outBuf = new byte[cipher.getOutputSize(CHUNK_SIZE)];
+        try {
+            int n;
+            while ((n = in.read(inBuf)) != -1) {
+                int len = cipher.update(inBuf, 0, n, outBuf);
+                out.write(outBuf, 0, len);
+            }
+            int len = cipher.doFinal(outBuf, 0);
+            out.write(outBuf, 0, len);
+        } catch (GeneralSecurityException e) {
+            throw new AESException(e.getMessage(), e);
+        }
+    }
+
+    public static void encrypt(byte[] seed, InputStream in, OutputStream out) throws AESException, IOException {
+        multiCrypt(seed, in, out, Cipher.ENCRYPT_MODE);
+    }
+
+    public static void decrypt(byte[] seed, InputStream in, OutputStream out) throws AESException, IOException {
+        multiCrypt(seed, in, out, Cipher.DECRYPT_MODE);
+    }
+
+    public static int encrypt(byte[] seed, ByteBuffer in, ByteBuffer out) throws AESException {
+        return multiCrypt(seed, in, out, Cipher.ENCRYPT_MODE);
+    }
+
+    public static int decrypt(byte[] seed, ByteBuffer in, ByteBuffer out) throws AESException {
+        return multiCrypt(seed, in, out, Cipher.DECRYPT_MODE);
+    }
+}
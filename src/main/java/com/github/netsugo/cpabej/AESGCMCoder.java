@@ -0,0 +1,234 @@
+package com.github.netsugo.cpabej;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+public class AESGCMCoder {
+    /*
+     * Payload format used by Common.FORMAT_AES_GCM. The AES-256 key is derived
+     * from the CP-ABE group element with HKDF-SHA256. The plaintext is split
+     * into CHUNK_SIZE pieces and each one is sealed separately with AES-GCM.
+     * The nonce is the chunk index plus a flag marking the final chunk, so
+     * reordered, dropped or truncated chunks fail authentication. Every
+     * message gets a fresh key, so deterministic nonces never repeat under one
+     * key.
+     *
+     * Layout: chunk_0 || chunk_1 || ... || chunk_n, where every chunk except
+     * the last one holds exactly CHUNK_SIZE plaintext bytes, and every chunk
+     * carries a TAG_LENGTH byte tag. An empty plaintext is a single empty
+     * final chunk.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int TAG_LENGTH = 16;
+
+    private static final int KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 12;
+    private static final byte[] KDF_SALT = new byte[32];
+    private static final byte[] KDF_INFO = "cpabej aes-256-gcm chunked v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SESSION_INFO = "cpabej session message v1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /*
+     * HKDF-SHA256 (RFC 5869) with a fixed salt; a single expand block is
+     * enough for a 32 byte key.
+     */
+    public static SecretKeySpec deriveKey(byte[] seed) throws AESException {
+        try {
+            Mac mac = HMAC.get();
+            mac.init(new SecretKeySpec(KDF_SALT, "HmacSHA256"));
+            byte[] prk = mac.doFinal(seed);
+
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update(KDF_INFO);
+            mac.update((byte) 1);
+            byte[] okm = mac.doFinal();
+            return new SecretKeySpec(okm, 0, KEY_LENGTH, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new AESException(e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Per-message seed of a session message: HKDF-SHA256 of the session seed
+     * with the message counter in the info string. The result is used as the
+     * seed of encrypt and decrypt, so every message gets its own AES key and
+     * the deterministic chunk nonces stay unique.
+     */
+    public static byte[] deriveMessageSeed(byte[] sessionSeed, long counter) throws AESException {
+        try {
+            Mac mac = HMAC.get();
+            mac.init(new SecretKeySpec(KDF_SALT, "HmacSHA256"));
+            byte[] prk = mac.doFinal(sessionSeed);
+
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update(SESSION_INFO);
+            for (int i = 0; i < 8; i++) {
+                mac.update((byte) (counter >>> (56 - 8 * i)));
+            }
+            mac.update((byte) 1);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new AESException(e.getMessage(), e);
+        }
+    }
+
+    public static long encryptedLength(long plainLength) {
+        long chunks = plainLength == 0 ? 1 : (plainLength + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        return plainLength + chunks * TAG_LENGTH;
+    }
+
+    public static long plainLength(long encryptedLength) throws AESException {
+        long chunks = (encryptedLength + CHUNK_SIZE + TAG_LENGTH - 1) / (CHUNK_SIZE + TAG_LENGTH);
+        long lastChunk = encryptedLength - (chunks - 1) * (CHUNK_SIZE + TAG_LENGTH);
+        if (chunks == 0 || lastChunk < TAG_LENGTH) {
+            throw new AESException("Truncated payload");
+        }
+        return encryptedLength - chunks * TAG_LENGTH;
+    }
+
+    private static GCMParameterSpec nonce(long index, boolean last) {
+        byte[] iv = new byte[NONCE_LENGTH];
+        for (int i = 0; i < 8; i++) {
+            iv[i] = (byte) (index >>> (56 - 8 * i));
+        }
+        iv[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_LENGTH * 8, iv);
+    }
+
+    /*
+     * Seal or open one chunk. Returns the number of bytes written to out.
+     */
+    public static int cryptChunk(SecretKeySpec key, long index, boolean last, int mode,
+                                 byte[] in, int inOff, int len, byte[] out, int outOff) throws AESException {
+        try {
+            Cipher cipher = CIPHER.get();
+            cipher.init(mode, key, nonce(index, last));
+            return cipher.doFinal(in, inOff, len, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new AESException(e.getMessage(), e);
+        }
+    }
+
+    public static int cryptChunk(SecretKeySpec key, long index, boolean last, int mode,
+                                 ByteBuffer in, ByteBuffer out) throws AESException {
+        try {
+            Cipher cipher = CIPHER.get();
+            cipher.init(mode, key, nonce(index, last));
+            return cipher.doFinal(in, out);
+        } catch (GeneralSecurityException e) {
+            throw new AESException(e.getMessage(), e);
+        }
+    }
+
+    public static byte[] encrypt(byte[] seed, byte[] plaintext) throws AESException {
+        byte[] out = new byte[(int) encryptedLength(plaintext.length)];
+        encrypt(seed, ByteBuffer.wrap(plaintext), ByteBuffer.wrap(out));
+        return out;
+    }
+
+    public static byte[] decrypt(byte[] seed, byte[] ciphertext) throws AESException {
+        byte[] out = new byte[(int) plainLength(ciphertext.length)];
+        decrypt(seed, ByteBuffer.wrap(ciphertext), ByteBuffer.wrap(out));
+        return out;
+    }
+
+    /*
+     * Buffer variants consume in from its position to its limit and write to
+     * out at its position. out needs encryptedLength / plainLength bytes of
+     * room. Either buffer may be direct or memory-mapped.
+     */
+    public static void encrypt(byte[] seed, ByteBuffer in, ByteBuffer out) throws AESException {
+        crypt(seed, in, out, Cipher.ENCRYPT_MODE, CHUNK_SIZE);
+    }
+
+    public static void decrypt(byte[] seed, ByteBuffer in, ByteBuffer out) throws AESException {
+        if (out.remaining() < plainLength(in.remaining())) {
+            throw new AESException("Output buffer too small");
+        }
+        crypt(seed, in, out, Cipher.DECRYPT_MODE, CHUNK_SIZE + TAG_LENGTH);
+    }
+
+    private static void crypt(byte[] seed, ByteBuffer in, ByteBuffer out, int mode, int chunk) throws AESException {
+        SecretKeySpec key = deriveKey(seed);
+
+        long index = 0;
+        do {
+            int len = Math.min(chunk, in.remaining());
+            boolean last = len == in.remaining();
+            ByteBuffer slice = in.duplicate();
+            slice.limit(slice.position() + len);
+            cryptChunk(key, index++, last, mode, slice, out);
+            in.position(in.position() + len);
+        } while (in.hasRemaining());
+    }
+
+    public static void encrypt(byte[] seed, InputStream in, OutputStream out) throws AESException, IOException {
+        crypt(seed, in, out, Cipher.ENCRYPT_MODE, CHUNK_SIZE);
+    }
+
+    public static void decrypt(byte[] seed, InputStream in, OutputStream out) throws AESException, IOException {
+        crypt(seed, in, out, Cipher.DECRYPT_MODE, CHUNK_SIZE + TAG_LENGTH);
+    }
+
+    /*
+     * A chunk is the final one when the stream ends right after it. One byte
+     * is read ahead to find out, and carried into the next chunk otherwise.
+     */
+    private static void crypt(byte[] seed, InputStream in, OutputStream out, int mode, int chunk) throws AESException, IOException {
+        SecretKeySpec key = deriveKey(seed);
+        byte[] inBuf = new byte[chunk];
+        byte[] outBuf = new byte[CHUNK_SIZE + TAG_LENGTH];
+
+        long index = 0;
+        int carry = -1;
+        boolean last = false;
+        while (!last) {
+            int len = 0;
+            if (carry >= 0) {
+                inBuf[len++] = (byte) carry;
+            }
+            len += fill(in, inBuf, len);
+            if (len < chunk) {
+                last = true;
+            } else {
+                carry = in.read();
+                last = carry < 0;
+            }
+            int n = cryptChunk(key, index++, last, mode, inBuf, 0, len, outBuf, 0);
+            out.write(outBuf, 0, n);
+        }
+    }
+
+    private static int fill(InputStream in, byte[] buf, int off) throws IOException {
+        int start = off;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n < 0) break;
+            off += n;
+        }
+        return off - start;
+    }
+}
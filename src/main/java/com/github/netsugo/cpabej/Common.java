@@ -2,12 +2,47 @@ package com.github.netsugo.cpabej;
 
 import com.github.netsugo.cpabej.bswabe.SerializeUtils;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 public class Common {
+    /*
+     * The mBuf slot carries the payload format. Ciphertexts written before the
+     * format was versioned have an empty mBuf and an AES/ECB payload.
+     * FORMAT_SESSION messages carry the format byte followed by the 8-byte
+     * message counter of their session; the payload is AES-GCM under a key
+     * derived from the session element and that counter.
+     */
+    public static final int FORMAT_LEGACY = 0;
+    public static final int FORMAT_AES_GCM = 1;
+    public static final int FORMAT_SESSION = 2;
+
+    public static byte[] formatHeader(int format) {
+        if (format == FORMAT_LEGACY) return new byte[0];
+        return new byte[]{(byte) format};
+    }
+
+    public static byte[] sessionHeader(long counter) {
+        return ByteBuffer.allocate(9).put((byte) FORMAT_SESSION).putLong(counter).array();
+    }
+
+    public static int readFormat(byte[] mBuf) throws IOException {
+        if (mBuf.length == 0) return FORMAT_LEGACY;
+        if (mBuf.length == 1 && mBuf[0] == FORMAT_AES_GCM) return FORMAT_AES_GCM;
+        if (mBuf.length == 9 && mBuf[0] == FORMAT_SESSION) return FORMAT_SESSION;
+        throw new IOException("Unsupported payload format");
+    }
+
+    public static long readCounter(byte[] mBuf) throws IOException {
+        if (readFormat(mBuf) != FORMAT_SESSION) throw new IOException("Not a session message");
+        return ByteBuffer.wrap(mBuf, 1, 8).getLong();
+    }
+
     public static ByteArrayOutputStream writeCpabeData(byte[] mBuf, byte[] cphBuf, byte[] aesBuf) throws IOException {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         SerializeUtils.writeBytes(os, mBuf);
@@ -28,19 +63,115 @@ public class Common {
         return res;
     }
 
+    public static long packedLength(int mLen, long aesLen, int cphLen) {
+        return 4L + mLen + 4L + aesLen + 4L + cphLen;
+    }
+
+    /*
+     * Writes the writeCpabeData layout into dst, leaving aesLen bytes for the
+     * symmetric payload unwritten, and returns a view of that region so the
+     * payload can be produced in place.
+     */
+    public static ByteBuffer writeCpabeData(ByteBuffer dst, byte[] mBuf, byte[] cphBuf, int aesLen) {
+        dst.putInt(mBuf.length).put(mBuf);
+        dst.putInt(aesLen);
+        ByteBuffer aes = dst.slice();
+        aes.limit(aesLen);
+        dst.position(dst.position() + aesLen);
+        dst.putInt(cphBuf.length).put(cphBuf);
+        return aes;
+    }
+
+    /*
+     * Reads the writeCpabeData layout from src and returns views of the aes,
+     * cph and m parts, in the same order as readCpabeData. Nothing is copied.
+     */
+    public static ByteBuffer[] readCpabeData(ByteBuffer src) {
+        ByteBuffer[] res = new ByteBuffer[3];
+        ByteBuffer mBuf = readSlice(src);
+        ByteBuffer aesBuf = readSlice(src);
+        ByteBuffer cphBuf = readSlice(src);
+
+        res[0] = aesBuf;
+        res[1] = cphBuf;
+        res[2] = mBuf;
+        return res;
+    }
+
+    private static ByteBuffer readSlice(ByteBuffer src) {
+        int len = src.getInt();
+        if (len < 0 || len > src.remaining()) {
+            throw new IllegalArgumentException("Truncated data");
+        }
+        ByteBuffer slice = src.slice();
+        slice.limit(len);
+        src.position(src.position() + len);
+        return slice;
+    }
+
+    /*
+     * Stream layout: mlen(4byte),mbuf,cphlen(4byte),cphbuf followed by the
+     * symmetric payload up to the end of the stream. The header comes first
+     * so the payload can be produced and consumed in chunks. Each header
+     * part is capped at MAX_HEADER_LENGTH, so a corrupt or hostile length
+     * prefix fails with an IOException instead of a huge allocation.
+     */
+    public static final int MAX_HEADER_LENGTH = 16 << 20;
+
+    public static void writeCpabeHeader(OutputStream os, byte[] mBuf, byte[] cphBuf) throws IOException {
+        SerializeUtils.writeBytes(os, mBuf);
+        SerializeUtils.writeBytes(os, cphBuf);
+    }
+
+    public static byte[][] readCpabeHeader(InputStream is) throws IOException {
+        byte[][] res = new byte[2][];
+        byte[] mBuf = SerializeUtils.readBytes(is, MAX_HEADER_LENGTH);
+        byte[] cphBuf = SerializeUtils.readBytes(is, MAX_HEADER_LENGTH);
+
+        res[0] = cphBuf;
+        res[1] = mBuf;
+        return res;
+    }
 
     public static byte[] packCpabe(byte[] cphBuf, byte[] aesBuf) throws IOException {
+        return packCpabe(formatHeader(FORMAT_LEGACY), cphBuf, aesBuf);
+    }
+
+    /*
+     * Packs the three parts straight into one array of exactly packedLength
+     * bytes.
+     */
+    public static byte[] packCpabe(byte[] mBuf, byte[] cphBuf, byte[] aesBuf) throws IOException {
         // store data
-        // mlen(4byte:int),mbuf,cphlen(4byte),cphbuf,aeslen(4byte),aesBuf
-        byte[] mBuf = new byte[0];
-        try (ByteArrayOutputStream stream = Common.writeCpabeData(mBuf, cphBuf, aesBuf)) {
-            return stream.toByteArray();
+        // mlen(4byte:int),mbuf,aeslen(4byte),aesBuf,cphlen(4byte),cphbuf
+        long packedLen = packedLength(mBuf.length, aesBuf.length, cphBuf.length);
+        if (packedLen > Integer.MAX_VALUE) {
+            throw new IOException("Too large for the packed layout");
+        }
+        byte[] packed = new byte[(int) packedLen];
+        writeCpabeData(ByteBuffer.wrap(packed), mBuf, cphBuf, aesBuf.length).put(aesBuf);
+        return packed;
+    }
+
+    /*
+     * Views of the aes, cph and m parts of packed, in that order. The views
+     * share packed, so nothing is copied.
+     */
+    public static ByteBuffer[] unpackCpabeViews(byte[] packed) throws IOException {
+        try {
+            return readCpabeData(ByteBuffer.wrap(packed));
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new EOFException("Truncated data");
         }
     }
 
     public static byte[][] UnpackCpabe(byte[] packed) throws IOException {
-        try (ByteArrayInputStream inputStream = new ByteArrayInputStream(packed)) {
-            return Common.readCpabeData(inputStream);
+        ByteBuffer[] views = unpackCpabeViews(packed);
+        byte[][] res = new byte[views.length][];
+        for (int i = 0; i < views.length; i++) {
+            res[i] = new byte[views[i].remaining()];
+            views[i].get(res[i]);
         }
+        return res;
     }
 }
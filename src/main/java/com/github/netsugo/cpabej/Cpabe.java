@@ -3,7 +3,25 @@ package com.github.netsugo.cpabej;
 import com.github.netsugo.cpabej.bswabe.*;
 import it.unisa.dia.gas.jpbc.Element;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.nio.file.StandardOpenOption.*;
 
 public class Cpabe {
 
@@ -16,65 +34,469 @@ public class Cpabe {
     public static final int SETUP_MASTER = 1;
 
     public static byte[][] setup() {
+        return setup(BswabeCurve.DEFAULT);
+    }
+
+    /* Same as setup(), on one of the preset curves */
+    public static byte[][] setup(BswabeCurve curve) {
         BswabePub pub = new BswabePub();
         BswabeMsk msk = new BswabeMsk();
-        Bswabe.setup(pub, msk);
+        Bswabe.setup(pub, msk, curve);
 
-        byte[] publicKey = SerializeUtils.serializeBswabePub(pub);
-        byte[] masterKey = SerializeUtils.serializeBswabeMsk(msk);
+        byte[] publicKey = SerializeUtils.serializeBswabePub(pub, true);
+        byte[] masterKey = SerializeUtils.serializeBswabeMsk(msk, true);
 
         return new byte[][]{publicKey, masterKey};
     }
 
     public static byte[] keygen(byte[] publicKey, byte[] masterKey, String attribute) throws NoSuchAlgorithmException {
-        BswabePub pub = SerializeUtils.unserializeBswabePub(publicKey);
-        BswabeMsk msk = SerializeUtils.unserializeBswabeMsk(pub, masterKey);
+        CpabePublicKey pub = CpabePublicKey.load(publicKey);
+        return keygen(CpabeMasterKey.load(pub, masterKey), attribute);
+    }
+
+    public static byte[] keygen(CpabeMasterKey masterKey, String attribute) throws NoSuchAlgorithmException {
         String[] parsedAttribute = LangPolicy.parseAttribute(attribute);
-        BswabePrv prv = Bswabe.keygen(pub, msk, parsedAttribute);
-        return SerializeUtils.serializeBswabePrv(prv);
+        BswabePrv prv = Bswabe.keygen(masterKey.publicKey.pub, masterKey.msk, parsedAttribute);
+        return SerializeUtils.serializeBswabePrv(prv, true);
+    }
+
+    /*
+     * Generate one private key per attribute string, returned serialized in
+     * input order. The master key setup and attribute hashing are shared by
+     * the whole batch, and the per-user work is spread over the common pool.
+     */
+    public static List<byte[]> keygen(CpabeMasterKey masterKey, List<String> attributes) throws NoSuchAlgorithmException {
+        return keygen(masterKey, attributes, ForkJoinPool.commonPool());
+    }
+
+    public static List<byte[]> keygen(CpabeMasterKey masterKey, List<String> attributes, Executor executor) throws NoSuchAlgorithmException {
+        List<String[]> parsedAttributes = new ArrayList<>(attributes.size());
+        for (String attribute : attributes) {
+            parsedAttributes.add(LangPolicy.parseAttribute(attribute));
+        }
+
+        List<BswabePrv> prvs = Bswabe.keygen(masterKey.publicKey.pub, masterKey.msk, parsedAttributes, executor);
+        List<byte[]> keys = new ArrayList<>(prvs.size());
+        for (BswabePrv prv : prvs) {
+            keys.add(SerializeUtils.serializeBswabePrv(prv, true));
+        }
+        return keys;
     }
 
     public static byte[] encrypt(byte[] publicKey, String policy, byte[] plain) throws EncryptException {
-        BswabePub pub = SerializeUtils.unserializeBswabePub(publicKey);
+        CpabePublicKey pub;
+        try {
+            pub = CpabePublicKey.load(publicKey);
+        } catch (Exception e) {
+            throw new EncryptException(e.getMessage(), e);
+        }
+        return encrypt(pub, policy, plain);
+    }
+
+    public static byte[] encrypt(CpabePublicKey publicKey, String policy, byte[] plain) throws EncryptException {
+        return encrypt(CpabePolicy.compile(publicKey, policy), plain);
+    }
 
+    /*
+     * Encrypt under a policy compiled with CpabePolicy.compile. Parsing and
+     * attribute hashing are skipped, which pays off when many messages share
+     * one policy.
+     */
+    public static byte[] encrypt(CpabePolicy policy, byte[] plain) throws EncryptException {
         try {
-            BswabeCphKey keyCph = Bswabe.encrypt(pub, policy);
+            BswabeCphKey keyCph = encapsulate(policy);
             BswabeCph cph = keyCph.cph;
             Element element = keyCph.key;
 
-            byte[] cphBuf = SerializeUtils.serializeBswabeCph(cph);
-            byte[] aesBuf = AESCoder.encrypt(element.toBytes(), plain);
+            byte[] mBuf = Common.formatHeader(Common.FORMAT_AES_GCM);
+            byte[] cphBuf = serializeHeader(policy, cph);
+
+            /* the payload is sealed straight into its place in the packed array */
+            long aesLen = AESGCMCoder.encryptedLength(plain.length);
+            long packedLen = Common.packedLength(mBuf.length, aesLen, cphBuf.length);
+            if (packedLen > Integer.MAX_VALUE) {
+                throw new EncryptException("Input too large for the packed layout");
+            }
+            byte[] packed = new byte[(int) packedLen];
+            ByteBuffer aesBuf = Common.writeCpabeData(ByteBuffer.wrap(packed), mBuf, cphBuf, (int) aesLen);
+            BswabeMetrics metrics = Bswabe.metrics();
+            long start = clock(metrics);
+            AESGCMCoder.encrypt(element.toBytes(), ByteBuffer.wrap(plain), aesBuf);
+            record(metrics, BswabeMetrics.Phase.SYMMETRIC_ENCRYPT, start);
+            return packed;
+        } catch (EncryptException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new EncryptException(e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Writes the CP-ABE header to out, then encrypts in to out chunk by chunk.
+     * Neither stream is closed.
+     */
+    public static void encrypt(CpabePublicKey publicKey, String policy, InputStream in, OutputStream out) throws EncryptException, IOException {
+        encrypt(CpabePolicy.compile(publicKey, policy), in, out);
+    }
+
+    public static void encrypt(CpabePolicy policy, InputStream in, OutputStream out) throws EncryptException, IOException {
+        try {
+            BswabeCphKey keyCph = encapsulate(policy);
+            byte[] cphBuf = serializeHeader(policy, keyCph.cph);
+
+            Common.writeCpabeHeader(out, Common.formatHeader(Common.FORMAT_AES_GCM), cphBuf);
+            BswabeMetrics metrics = Bswabe.metrics();
+            long start = clock(metrics);
+            AESGCMCoder.encrypt(keyCph.key.toBytes(), in, out);
+            record(metrics, BswabeMetrics.Phase.SYMMETRIC_ENCRYPT, start);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new EncryptException(e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Encrypts the file at in into the file at out, using the packed layout of
+     * encrypt(CpabePublicKey, String, byte[]). Both files are memory-mapped,
+     * so the payload is never copied through the heap. The layout stores
+     * 4-byte lengths, so the output must stay below 2 GiB; use the stream
+     * variant for anything larger.
+     */
+    public static void encrypt(CpabePublicKey publicKey, String policy, Path in, Path out) throws EncryptException, IOException {
+        encrypt(CpabePolicy.compile(publicKey, policy), in, out);
+    }
+
+    public static void encrypt(CpabePolicy policy, Path in, Path out) throws EncryptException, IOException {
+        try (FileChannel src = FileChannel.open(in, READ);
+             FileChannel dst = FileChannel.open(out, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+            BswabeCphKey keyCph = encapsulate(policy);
+            byte[] mBuf = Common.formatHeader(Common.FORMAT_AES_GCM);
+            byte[] cphBuf = serializeHeader(policy, keyCph.cph);
+
+            long aesLen = AESGCMCoder.encryptedLength(src.size());
+            long packedLen = Common.packedLength(mBuf.length, aesLen, cphBuf.length);
+            if (packedLen > Integer.MAX_VALUE) {
+                throw new EncryptException("Input too large for the packed layout: " + in);
+            }
+
+            MappedByteBuffer plain = src.map(FileChannel.MapMode.READ_ONLY, 0, src.size());
+            MappedByteBuffer packed = dst.map(FileChannel.MapMode.READ_WRITE, 0, packedLen);
+            ByteBuffer aesBuf = Common.writeCpabeData(packed, mBuf, cphBuf, (int) aesLen);
+            BswabeMetrics metrics = Bswabe.metrics();
+            long start = clock(metrics);
+            AESGCMCoder.encrypt(keyCph.key.toBytes(), plain, aesBuf);
+            record(metrics, BswabeMetrics.Phase.SYMMETRIC_ENCRYPT, start);
+        } catch (IOException | EncryptException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new EncryptException(e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Encrypt one message of a session. Only the first message of each
+     * encapsulation pays for CP-ABE; the rest cost a key derivation and
+     * AES-GCM.
+     */
+    public static byte[] encrypt(CpabeSession session, byte[] plain) throws EncryptException {
+        try {
+            CpabeSession.Message message = session.next();
+            byte[] mBuf = Common.sessionHeader(message.counter);
+            byte[] seed;
+            try {
+                seed = AESGCMCoder.deriveMessageSeed(message.seed, message.counter);
+            } finally {
+                Arrays.fill(message.seed, (byte) 0);
+            }
 
-            return Common.packCpabe(cphBuf, aesBuf);
+            long aesLen = AESGCMCoder.encryptedLength(plain.length);
+            long packedLen = Common.packedLength(mBuf.length, aesLen, message.cphBuf.length);
+            if (packedLen > Integer.MAX_VALUE) {
+                throw new EncryptException("Input too large for the packed layout");
+            }
+            byte[] packed = new byte[(int) packedLen];
+            ByteBuffer aesBuf = Common.writeCpabeData(ByteBuffer.wrap(packed), mBuf, message.cphBuf, (int) aesLen);
+            BswabeMetrics metrics = Bswabe.metrics();
+            long start = clock(metrics);
+            AESGCMCoder.encrypt(seed, ByteBuffer.wrap(plain), aesBuf);
+            record(metrics, BswabeMetrics.Phase.SYMMETRIC_ENCRYPT, start);
+            return packed;
+        } catch (EncryptException e) {
+            throw e;
         } catch (Exception e) {
             throw new EncryptException(e.getMessage(), e);
         }
     }
 
+    /* the start of a phase, read from the clock only while a listener is installed */
+    private static long clock(BswabeMetrics metrics) {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    private static void record(BswabeMetrics metrics, BswabeMetrics.Phase phase, long start) {
+        if (metrics != null) metrics.record(phase, System.nanoTime() - start, 0, 0, 0);
+    }
+
+    static BswabeCphKey encapsulate(CpabePolicy policy) {
+        CpabePublicKey publicKey = policy.publicKey;
+        return Bswabe.encrypt(publicKey.pub, policy.compiled, publicKey.pool, publicKey.threshold);
+    }
+
+    /* legacy-encoded unless the key handle opted into compact headers */
+    static byte[] serializeHeader(CpabePolicy policy, BswabeCph cph) {
+        return SerializeUtils.serializeBswabeCph(cph, policy.publicKey.compactHeaders);
+    }
+
+    /*
+     * The seed of the symmetric payload. With a CpabeKeyCache on the key, the
+     * recovered element is looked up there by header digest first, session
+     * elements included. Without one, session elements still go through the
+     * key's own session cache, so a session is only opened once per key;
+     * CpabeKeyCache.invalidate(privateKey) drops both. The per-message seed
+     * of a session message is derived from the session element.
+     */
+    private static byte[] recoverSeed(CpabePrivateKey privateKey, ByteBuffer cphBuf, byte[] mBuf, int format) throws Exception {
+        boolean session = format == Common.FORMAT_SESSION;
+        byte[] element;
+        if (privateKey.keyCache != null) {
+            String digest = headerDigest(cphBuf);
+            element = privateKey.keyCache.get(privateKey.id, digest);
+            if (element == null) {
+                element = recoverElement(privateKey, cphBuf);
+                privateKey.keyCache.put(privateKey.id, digest, element);
+            }
+        } else if (session) {
+            String digest = headerDigest(cphBuf);
+            element = privateKey.sessions.get(privateKey.id, digest);
+            if (element == null) {
+                element = recoverElement(privateKey, cphBuf);
+                privateKey.sessions.put(privateKey.id, digest, element);
+            }
+        } else {
+            element = recoverElement(privateKey, cphBuf);
+        }
+
+        if (!session) return element;
+        return AESGCMCoder.deriveMessageSeed(element, Common.readCounter(mBuf));
+    }
+
+    /* SHA-256 of the serialized CP-ABE header, Base64 encoded */
+    private static String headerDigest(ByteBuffer cphBuf) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(cphBuf.duplicate());
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    static String headerDigest(byte[] encrypted) throws DecryptException {
+        int BUF_CPH = 1;
+
+        try {
+            return headerDigest(Common.unpackCpabeViews(encrypted)[BUF_CPH]);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new DecryptException(e.getMessage(), e);
+        }
+    }
+
+    private static byte[] recoverElement(CpabePrivateKey privateKey, ByteBuffer cphBuf) {
+        BswabePub pub = privateKey.publicKey.pub;
+        BswabeCph cph = SerializeUtils.unserializeBswabeCph(pub, cphBuf.duplicate());
+        if (cph == null) throw new IllegalArgumentException("Invalid ciphertext header");
+
+        Element e = Bswabe.decrypt(pub, privateKey.prv, cph, privateKey.executor, privateKey.threshold);
+        return e.toBytes();
+    }
+
     public static byte[] decrypt(byte[] publicKey, byte[] privateKey, byte[] encrypted) throws DecryptException {
+        CpabePrivateKey prv;
+        try {
+            prv = CpabePrivateKey.load(CpabePublicKey.load(publicKey), privateKey);
+        } catch (Exception e) {
+            throw new DecryptException(e.getMessage(), e);
+        }
+        return decrypt(prv, encrypted);
+    }
+
+    public static byte[] decrypt(CpabePrivateKey privateKey, byte[] encrypted) throws DecryptException {
         int BUF_AES = 0;
         int BUF_CPH = 1;
+        int BUF_M = 2;
+
+        try {
+            ByteBuffer[] tmp = Common.unpackCpabeViews(encrypted);
+            ByteBuffer aesBuf = tmp[BUF_AES];
+            byte[] mBuf = new byte[tmp[BUF_M].remaining()];
+            tmp[BUF_M].get(mBuf);
+
+            int format = Common.readFormat(mBuf);
+            byte[] seed = recoverSeed(privateKey, tmp[BUF_CPH], mBuf, format);
+
+            BswabeMetrics metrics = Bswabe.metrics();
+            long start = clock(metrics);
+            byte[] plain;
+            if (format == Common.FORMAT_LEGACY) {
+                byte[] aes = new byte[aesBuf.remaining()];
+                aesBuf.get(aes);
+                plain = AESCoder.decrypt(seed, aes);
+            } else {
+                plain = new byte[(int) AESGCMCoder.plainLength(aesBuf.remaining())];
+                AESGCMCoder.decrypt(seed, aesBuf, ByteBuffer.wrap(plain));
+            }
+            record(metrics, BswabeMetrics.Phase.SYMMETRIC_DECRYPT, start);
+            return plain;
+        } catch (Exception e) {
+            throw new DecryptException(e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Reads a stream written by encrypt(CpabePublicKey, String, InputStream,
+     * OutputStream) and writes the plaintext to out chunk by chunk. Neither
+     * stream is closed. A header that cannot be read is an IOException; one
+     * that reads but does not decrypt, including an unknown payload format,
+     * is a DecryptException like in the other variants.
+     */
+    public static void decrypt(CpabePrivateKey privateKey, InputStream in, OutputStream out) throws DecryptException, IOException {
+        int BUF_CPH = 0;
+        int BUF_M = 1;
+
+        byte[][] tmp = Common.readCpabeHeader(in);
+        int format;
+        byte[] seed;
+        try {
+            format = Common.readFormat(tmp[BUF_M]);
+            seed = recoverSeed(privateKey, ByteBuffer.wrap(tmp[BUF_CPH]), tmp[BUF_M], format);
+        } catch (Exception e) {
+            throw new DecryptException(e.getMessage(), e);
+        }
+
+        try {
+            BswabeMetrics metrics = Bswabe.metrics();
+            long start = clock(metrics);
+            if (format == Common.FORMAT_LEGACY) {
+                AESCoder.decrypt(seed, in, out);
+            } else {
+                AESGCMCoder.decrypt(seed, in, out);
+            }
+            record(metrics, BswabeMetrics.Phase.SYMMETRIC_DECRYPT, start);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DecryptException(e.getMessage(), e);
+        }
+    }
 
+    /*
+     * Decrypts a file written by encrypt(CpabePublicKey, String, Path, Path) or
+     * by writing the result of the byte[] variant to disk. Both files are
+     * memory-mapped. If decryption fails, out is deleted rather than left
+     * holding a partial or unauthenticated plaintext.
+     */
+    public static void decrypt(CpabePrivateKey privateKey, Path in, Path out) throws DecryptException, IOException {
         try {
-            byte[][] tmp = Common.UnpackCpabe(encrypted);
-            byte[] aesBuf = tmp[BUF_AES];
-            byte[] cphBuf = tmp[BUF_CPH];
-            BswabePub pub = SerializeUtils.unserializeBswabePub(publicKey);
-            BswabeCph cph = SerializeUtils.unserializeBswabeCph(pub, cphBuf);
-            BswabePrv prv = SerializeUtils.unserializeBswabePrv(pub, privateKey);
-
-            Element e = Bswabe.decrypt(pub, prv, cph);
-            return AESCoder.decrypt(e.toBytes(), aesBuf);
+            decryptMapped(privateKey, in, out);
+        } catch (IOException | DecryptException e) {
+            try {
+                Files.deleteIfExists(out);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    private static void decryptMapped(CpabePrivateKey privateKey, Path in, Path out) throws DecryptException, IOException {
+        int BUF_AES = 0;
+        int BUF_CPH = 1;
+        int BUF_M = 2;
+
+        try (FileChannel src = FileChannel.open(in, READ);
+             FileChannel dst = FileChannel.open(out, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+            if (src.size() > Integer.MAX_VALUE) {
+                throw new DecryptException("Input too large for the packed layout: " + in);
+            }
+            ByteBuffer[] tmp = Common.readCpabeData(src.map(FileChannel.MapMode.READ_ONLY, 0, src.size()));
+            ByteBuffer aesBuf = tmp[BUF_AES];
+            byte[] mBuf = new byte[tmp[BUF_M].remaining()];
+            tmp[BUF_M].get(mBuf);
+
+            int format = Common.readFormat(mBuf);
+            byte[] seed = recoverSeed(privateKey, tmp[BUF_CPH], mBuf, format);
+
+            BswabeMetrics metrics = Bswabe.metrics();
+            long start = clock(metrics);
+            if (format == Common.FORMAT_LEGACY) {
+                /*
+                 * the padded length is only known after the last block, so
+                 * decrypt into memory and write through the channel instead
+                 * of mapping a region that would need truncating afterwards
+                 */
+                ByteBuffer plain = ByteBuffer.allocate(aesBuf.remaining());
+                AESCoder.decrypt(seed, aesBuf, plain);
+                plain.flip();
+                while (plain.hasRemaining()) {
+                    dst.write(plain);
+                }
+            } else {
+                long len = AESGCMCoder.plainLength(aesBuf.remaining());
+                MappedByteBuffer plain = dst.map(FileChannel.MapMode.READ_WRITE, 0, len);
+                AESGCMCoder.decrypt(seed, aesBuf, plain);
+            }
+            record(metrics, BswabeMetrics.Phase.SYMMETRIC_DECRYPT, start);
+        } catch (IOException | DecryptException e) {
+            throw e;
         } catch (Exception e) {
             throw new DecryptException(e.getMessage(), e);
         }
     }
 
+    /*
+     * Whether privateKey can decrypt encrypted, answered from the ciphertext
+     * header alone: the policy gates and attribute strings are read, every
+     * group element is skipped, and no pairing is computed.
+     */
+    public static boolean canDecrypt(CpabePrivateKey privateKey, byte[] encrypted) throws DecryptException {
+        return Bswabe.satisfies(readPolicyTree(encrypted), privateKey.attributes);
+    }
+
+    /* Same, for a serialized private key; the key's elements are not decoded either */
+    public static boolean canDecrypt(byte[] privateKey, byte[] encrypted) throws DecryptException {
+        List<String> attributes = SerializeUtils.unserializeBswabePrvAttributes(privateKey);
+        if (attributes == null) throw new DecryptException("Invalid private key");
+        return Bswabe.satisfies(readPolicyTree(encrypted), new HashSet<>(attributes));
+    }
+
+    /* The policy encrypted was sealed under, as a postfix policy string the default compile reads back */
+    public static String readPolicy(byte[] encrypted) throws DecryptException {
+        return readPolicy(encrypted, BswabeStackOrder.BOTTOM);
+    }
+
+    /* Same, written for compiling with the given stack order */
+    public static String readPolicy(byte[] encrypted, BswabeStackOrder order) throws DecryptException {
+        return Bswabe.policyString(readPolicyTree(encrypted), order);
+    }
+
+    private static BswabePolicy readPolicyTree(byte[] encrypted) throws DecryptException {
+        int BUF_CPH = 1;
+
+        BswabePolicy policy;
+        try {
+            policy = SerializeUtils.unserializeBswabePolicy(Common.unpackCpabeViews(encrypted)[BUF_CPH]);
+        } catch (IOException e) {
+            throw new DecryptException(e.getMessage(), e);
+        }
+        if (policy == null) throw new DecryptException("Invalid ciphertext header");
+        return policy;
+    }
+
     public static byte[] delegate(byte[] pubKey, byte[] oldSecret, String subAttributes) throws NoSuchAlgorithmException {
-        BswabePub pub = SerializeUtils.unserializeBswabePub(pubKey);
-        BswabePrv oldKey = SerializeUtils.unserializeBswabePrv(pub, oldSecret);
+        CpabePublicKey pub = CpabePublicKey.load(pubKey);
+        return delegate(CpabePrivateKey.load(pub, oldSecret), subAttributes);
+    }
+
+    public static byte[] delegate(CpabePrivateKey oldSecret, String subAttributes) throws NoSuchAlgorithmException {
         String[] parsedAttribute = LangPolicy.parseAttribute(subAttributes);
-        BswabePrv newKey = Bswabe.delegate(pub, oldKey, parsedAttribute);
-        return SerializeUtils.serializeBswabePrv(newKey);
+        BswabePrv newKey = Bswabe.delegate(oldSecret.publicKey.pub, oldSecret.prv, parsedAttribute);
+        return SerializeUtils.serializeBswabePrv(newKey, true);
     }
 }
@@ -0,0 +1,199 @@
+package com.github.netsugo.cpabej;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+public class CpabeKeyCache {
+    /*
+     * Recovered payload seeds, keyed by private key and by the SHA-256 of the
+     * ciphertext header. Attach it to a key with
+     * CpabePrivateKey.withKeyCache; opening a ciphertext whose header was
+     * already opened with the same key then skips the pairings and only pays
+     * for the symmetric payload.
+     *
+     * Entries expire ttl after they were stored. The cache holds at most
+     * maxEntries entries and roughly maxBytes bytes, evicting the least
+     * recently used entry first. The values are secrets: they are zeroed when
+     * they leave the cache, and should be dropped with invalidate as soon as
+     * the key or the ciphertext is revoked. Safe to share between threads and
+     * between keys.
+     */
+    /* approximate per-entry overhead of the map, key and entry objects */
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CpabeKeyCache(int maxEntries, long maxBytes, Duration ttl) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries < 1");
+        if (maxBytes < 1) throw new IllegalArgumentException("maxBytes < 1");
+        if (ttl.isNegative() || ttl.isZero()) throw new IllegalArgumentException("ttl <= 0");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    private static final class Key {
+        final long keyId;
+        final String digest;
+
+        Key(long keyId, String digest) {
+            this.keyId = keyId;
+            this.digest = digest;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return keyId == other.keyId && digest.equals(other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(keyId, digest);
+        }
+    }
+
+    private static final class Entry {
+        final byte[] value;
+        final long expiresAt;
+        final int size;
+
+        Entry(Key key, byte[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.size = ENTRY_OVERHEAD + 2 * key.digest.length() + value.length;
+        }
+    }
+
+    /* a copy of the cached seed, or null */
+    byte[] get(long keyId, String digest) {
+        Key key = new Key(keyId, digest);
+        synchronized (map) {
+            Entry entry = map.get(key);
+            if (entry != null && System.nanoTime() - entry.expiresAt >= 0) {
+                remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.value.clone();
+        }
+    }
+
+    void put(long keyId, String digest, byte[] value) {
+        Key key = new Key(keyId, digest);
+        Entry entry = new Entry(key, value.clone(), System.nanoTime() + ttlNanos);
+        synchronized (map) {
+            remove(key);
+            map.put(key, entry);
+            bytes += entry.size;
+
+            Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+            while ((map.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                discard(eldest);
+                evictions.increment();
+            }
+        }
+    }
+
+    private void remove(Key key) {
+        Entry entry = map.remove(key);
+        if (entry != null) discard(entry);
+    }
+
+    private void discard(Entry entry) {
+        bytes -= entry.size;
+        Arrays.fill(entry.value, (byte) 0);
+    }
+
+    /*
+     * Drops every entry recovered with privateKey or any handle derived from
+     * it, together with the session elements the key keeps on its own, so
+     * revoking a key never leaves its secrets in the other cache.
+     */
+    public void invalidate(CpabePrivateKey privateKey) {
+        if (privateKey.sessions != this) privateKey.sessions.invalidate(privateKey);
+        synchronized (map) {
+            map.entrySet().removeIf(e -> {
+                if (e.getKey().keyId != privateKey.id) return false;
+                discard(e.getValue());
+                return true;
+            });
+        }
+    }
+
+    /* Drops every entry for the header of encrypted, whichever key opened it */
+    public void invalidate(byte[] encrypted) throws DecryptException {
+        String digest = Cpabe.headerDigest(encrypted);
+        synchronized (map) {
+            map.entrySet().removeIf(e -> {
+                if (!e.getKey().digest.equals(digest)) return false;
+                discard(e.getValue());
+                return true;
+            });
+        }
+    }
+
+    /* Drops expired entries now instead of when they are next looked up */
+    public void purgeExpired() {
+        long now = System.nanoTime();
+        synchronized (map) {
+            map.entrySet().removeIf(e -> {
+                if (now - e.getValue().expiresAt < 0) return false;
+                discard(e.getValue());
+                return true;
+            });
+        }
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.values().forEach(this::discard);
+            map.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /* approximate memory held by the entries */
+    public long bytes() {
+        synchronized (map) {
+            return bytes;
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+}
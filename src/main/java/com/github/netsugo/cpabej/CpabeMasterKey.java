@@ -0,0 +1,32 @@
+package com.github.netsugo.cpabej;
+
+import com.github.netsugo.cpabej.bswabe.BswabeMsk;
+import com.github.netsugo.cpabej.bswabe.SerializeUtils;
+
+public class CpabeMasterKey {
+    /*
+     * A master secret key bound to the public key it was loaded with. Safe to
+     * share between threads.
+     */
+    final CpabePublicKey publicKey;
+    final BswabeMsk msk;
+
+    CpabeMasterKey(CpabePublicKey publicKey, BswabeMsk msk) {
+        this.publicKey = publicKey;
+        this.msk = msk;
+    }
+
+    public static CpabeMasterKey load(CpabePublicKey publicKey, byte[] masterKey) {
+        BswabeMsk msk = SerializeUtils.unserializeBswabeMsk(publicKey.pub, masterKey);
+        if (msk == null) throw new IllegalArgumentException("Invalid master key");
+        return new CpabeMasterKey(publicKey, msk);
+    }
+
+    public CpabePublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    public byte[] toBytes() {
+        return SerializeUtils.serializeBswabeMsk(msk, true);
+    }
+}
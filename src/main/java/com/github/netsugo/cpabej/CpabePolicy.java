@@ -0,0 +1,49 @@
+package com.github.netsugo.cpabej;
+
+import com.github.netsugo.cpabej.bswabe.Bswabe;
+import com.github.netsugo.cpabej.bswabe.BswabeCompiledPolicy;
+import com.github.netsugo.cpabej.bswabe.BswabeStackOrder;
+
+public class CpabePolicy {
+    /*
+     * A policy compiled once against a public key and reused for many
+     * encryptions. The policy string is parsed and every leaf attribute is
+     * hashed at compile time; the handle is immutable, so it can be shared
+     * between threads.
+     */
+    final CpabePublicKey publicKey;
+    final BswabeCompiledPolicy compiled;
+    private final String policy;
+
+    private CpabePolicy(CpabePublicKey publicKey, BswabeCompiledPolicy compiled, String policy) {
+        this.publicKey = publicKey;
+        this.compiled = compiled;
+        this.policy = policy;
+    }
+
+    public static CpabePolicy compile(CpabePublicKey publicKey, String policy) throws EncryptException {
+        return compile(publicKey, policy, BswabeStackOrder.BOTTOM);
+    }
+
+    /* Same, with gates taking their children from the given end of the stack */
+    public static CpabePolicy compile(CpabePublicKey publicKey, String policy, BswabeStackOrder order) throws EncryptException {
+        try {
+            return new CpabePolicy(publicKey, Bswabe.compile(publicKey.pub, policy, order), policy);
+        } catch (Exception e) {
+            throw new EncryptException(e.getMessage(), e);
+        }
+    }
+
+    public CpabePublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    public int leafCount() {
+        return compiled.leafCount();
+    }
+
+    @Override
+    public String toString() {
+        return policy;
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.netsugo.cpabej;
+
+import com.github.netsugo.cpabej.bswabe.Bswabe;
+import com.github.netsugo.cpabej.bswabe.BswabePrv;
+import com.github.netsugo.cpabej.bswabe.BswabePrvComp;
+import com.github.netsugo.cpabej.bswabe.SerializeUtils;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CpabePrivateKey {
+    /*
+     * A private key bound to the public key it was loaded with. Safe to share
+     * between threads.
+     */
+    /* number of CpabeSession headers whose element is kept per key, and for how long */
+    public static final int SESSION_CACHE_CAPACITY = 256;
+    public static final Duration SESSION_CACHE_TTL = CpabeSession.DEFAULT_MAX_AGE;
+
+    private static final AtomicLong IDS = new AtomicLong();
+
+    final CpabePublicKey publicKey;
+    final BswabePrv prv;
+    final Executor executor;
+    final int threshold;
+    final Set<String> attributes;
+    /* recovered session elements when no keyCache is attached; zeroed on eviction */
+    final CpabeKeyCache sessions;
+    /* identifies this key in a CpabeKeyCache; shared by the handles derived from it */
+    final long id;
+    final CpabeKeyCache keyCache;
+
+    CpabePrivateKey(CpabePublicKey publicKey, BswabePrv prv) {
+        this(publicKey, prv, null, Bswabe.PARALLEL_DECRYPT_THRESHOLD, attributes(prv),
+                new CpabeKeyCache(SESSION_CACHE_CAPACITY, Long.MAX_VALUE, SESSION_CACHE_TTL), IDS.incrementAndGet(), null);
+    }
+
+    private CpabePrivateKey(CpabePublicKey publicKey, BswabePrv prv, Executor executor, int threshold,
+                            Set<String> attributes, CpabeKeyCache sessions, long id, CpabeKeyCache keyCache) {
+        this.publicKey = publicKey;
+        this.prv = prv;
+        this.executor = executor;
+        this.threshold = threshold;
+        this.attributes = attributes;
+        this.sessions = sessions;
+        this.id = id;
+        this.keyCache = keyCache;
+    }
+
+    private static Set<String> attributes(BswabePrv prv) {
+        Set<String> attributes = new HashSet<>();
+        for (BswabePrvComp comp : prv.comps) attributes.add(comp.attr);
+        return Collections.unmodifiableSet(attributes);
+    }
+
+    public static CpabePrivateKey load(CpabePublicKey publicKey, byte[] privateKey) {
+        BswabePrv prv = SerializeUtils.unserializeBswabePrv(publicKey.pub, privateKey);
+        if (prv == null) throw new IllegalArgumentException("Invalid private key");
+        return new CpabePrivateKey(publicKey, prv);
+    }
+
+    public CpabePublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /*
+     * the recovered session elements with their hit/miss counters; shared by
+     * the handles derived from this key. Use invalidate or clear on it to
+     * drop session secrets early.
+     */
+    public CpabeKeyCache sessionCache() {
+        return sessions;
+    }
+
+    public Set<String> getAttributes() {
+        return attributes;
+    }
+
+    public byte[] toBytes() {
+        return SerializeUtils.serializeBswabePrv(prv, true);
+    }
+
+    /*
+     * Returns a handle on the same key that decrypts in parallel mode: when a
+     * ciphertext needs more than threshold leaves, the leaf pairings run as
+     * separate tasks on executor.
+     */
+    public CpabePrivateKey withParallelism(Executor executor, int threshold) {
+        return new CpabePrivateKey(publicKey, prv, executor, threshold, attributes, sessions, id, keyCache);
+    }
+
+    /*
+     * Returns a handle on the same key whose recovered payload seeds are kept
+     * in cache, so reopening a ciphertext skips the pairings. Pass null to
+     * stop caching.
+     */
+    public CpabePrivateKey withKeyCache(CpabeKeyCache cache) {
+        return new CpabePrivateKey(publicKey, prv, executor, threshold, attributes, sessions, id, cache);
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.netsugo.cpabej;
+
+import com.github.netsugo.cpabej.bswabe.Bswabe;
+import com.github.netsugo.cpabej.bswabe.BswabeDecPlan;
+import com.github.netsugo.cpabej.bswabe.BswabePub;
+import com.github.netsugo.cpabej.bswabe.LruCache;
+import com.github.netsugo.cpabej.bswabe.SerializeUtils;
+import it.unisa.dia.gas.jpbc.Element;
+
+import java.util.concurrent.ForkJoinPool;
+
+public class CpabePublicKey {
+    /*
+     * A public key parsed once and reused across calls. The pairing and every
+     * element are decoded at load time; all operations only read them, so one
+     * instance can be shared between threads.
+     */
+    final BswabePub pub;
+    final ForkJoinPool pool;
+    final int threshold;
+    final boolean compactHeaders;
+
+    CpabePublicKey(BswabePub pub) {
+        this(pub, null, Bswabe.PARALLEL_THRESHOLD, false);
+    }
+
+    private CpabePublicKey(BswabePub pub, ForkJoinPool pool, int threshold, boolean compactHeaders) {
+        this.pub = pub;
+        this.pool = pool;
+        this.threshold = threshold;
+        this.compactHeaders = compactHeaders;
+    }
+
+    public static CpabePublicKey load(byte[] publicKey) {
+        return load(publicKey, false);
+    }
+
+    /*
+     * With preprocess set, fixed-base tables for g, h and g_hat_alpha are
+     * built once here. Loading gets slower and the key takes more memory, but
+     * every encrypt, keygen and delegate with it gets faster.
+     */
+    public static CpabePublicKey load(byte[] publicKey, boolean preprocess) {
+        return load(publicKey, preprocess, Bswabe.HASH_CACHE_CAPACITY);
+    }
+
+    /*
+     * hashCacheCapacity bounds how many attribute hashes are kept with this
+     * key; 0 disables the cache.
+     */
+    public static CpabePublicKey load(byte[] publicKey, boolean preprocess, int hashCacheCapacity) {
+        return load(publicKey, preprocess, hashCacheCapacity, Bswabe.PLAN_CACHE_CAPACITY);
+    }
+
+    /*
+     * planCacheCapacity bounds how many decryption plans, one per pair of
+     * key attribute list and policy shape, are kept with this key; 0 disables
+     * the cache.
+     */
+    public static CpabePublicKey load(byte[] publicKey, boolean preprocess, int hashCacheCapacity, int planCacheCapacity) {
+        BswabePub pub = SerializeUtils.unserializeBswabePub(publicKey);
+        if (pub == null) throw new IllegalArgumentException("Invalid public key");
+        if (preprocess) Bswabe.preprocess(pub);
+        if (hashCacheCapacity > 0) pub.hashCache = new LruCache<>(hashCacheCapacity);
+        if (planCacheCapacity > 0) pub.planCache = new LruCache<>(planCacheCapacity);
+        return new CpabePublicKey(pub);
+    }
+
+    /* the attribute hash cache with its hit/miss counters, or null if disabled */
+    public LruCache<String, Element> hashCache() {
+        return pub.hashCache;
+    }
+
+    /* the decryption plan cache with its hit/miss counters, or null if disabled */
+    public LruCache<String, BswabeDecPlan> planCache() {
+        return pub.planCache;
+    }
+
+    public byte[] toBytes() {
+        return SerializeUtils.serializeBswabePub(pub, true);
+    }
+
+    /*
+     * Returns a handle on the same key that encrypts in parallel mode: policy
+     * subtrees with more than threshold leaves are filled as separate tasks
+     * on pool; 0 forks down to single leaves. The ciphertext format does not
+     * change.
+     */
+    public CpabePublicKey withParallelism(ForkJoinPool pool, int threshold) {
+        if (threshold < 0) throw new IllegalArgumentException("threshold < 0");
+        return new CpabePublicKey(pub, pool, threshold, compactHeaders);
+    }
+
+    /*
+     * Returns a handle on the same key whose ciphertext headers use the
+     * compact encoding with compressed points. Headers shrink by roughly
+     * half, but every decrypt then pays a square root for each of the 2n
+     * leaf points, including leaves the key never uses. Off by default; worth
+     * it when ciphertexts are stored or sent far more often than they are
+     * decrypted. Both encodings decrypt everywhere.
+     */
+    public CpabePublicKey withCompactHeaders(boolean compactHeaders) {
+        return new CpabePublicKey(pub, pool, threshold, compactHeaders);
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.netsugo.cpabej;
+
+import com.github.netsugo.cpabej.bswabe.BswabeCphKey;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+public class CpabeSession {
+    /*
+     * Encrypts many messages under one policy with a single CP-ABE
+     * encapsulation. The session element is encapsulated once; each message
+     * is then sealed with AES-GCM under a key derived from that element and
+     * the message counter, so a message costs symmetric crypto only. Every
+     * message still carries the session header, so it decrypts on its own;
+     * readers recover the session element once and keep it (see
+     * CpabePrivateKey).
+     *
+     * A new encapsulation is made after maxMessages messages or once the
+     * session is older than maxAge, whichever comes first. Safe to share
+     * between threads.
+     */
+    public static final long DEFAULT_MAX_MESSAGES = 1L << 20;
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofHours(1);
+
+    private final CpabePolicy policy;
+    private final long maxMessages;
+    private final long maxAgeNanos;
+
+    private byte[] cphBuf;
+    private byte[] seed;
+    private long counter;
+    private long openedAt;
+    /* the encapsulation in flight, if any */
+    private CompletableFuture<Void> rotation;
+
+    private CpabeSession(CpabePolicy policy, long maxMessages, Duration maxAge) {
+        if (maxMessages < 1) throw new IllegalArgumentException("maxMessages < 1");
+        if (maxAge.isNegative() || maxAge.isZero()) throw new IllegalArgumentException("maxAge <= 0");
+        this.policy = policy;
+        this.maxMessages = maxMessages;
+        this.maxAgeNanos = maxAge.toNanos();
+    }
+
+    public static CpabeSession open(CpabePolicy policy) {
+        return open(policy, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_AGE);
+    }
+
+    public static CpabeSession open(CpabePolicy policy, long maxMessages, Duration maxAge) {
+        return new CpabeSession(policy, maxMessages, maxAge);
+    }
+
+    public CpabePolicy getPolicy() {
+        return policy;
+    }
+
+    /* Forces a new encapsulation before the next message */
+    public synchronized void rotate() {
+        if (seed != null) Arrays.fill(seed, (byte) 0);
+        cphBuf = null;
+        seed = null;
+    }
+
+    /*
+     * the session header, seed and counter of the next message, rotating
+     * first if due. One thread at a time encapsulates, outside the lock;
+     * threads that find a rotation already in flight wait for it and then
+     * seal under the session it installs, so a burst of first messages
+     * costs one encapsulation.
+     */
+    Message next() {
+        CompletableFuture<Void> own;
+        while (true) {
+            CompletableFuture<Void> pending;
+            synchronized (this) {
+                if (!due(System.nanoTime())) return new Message(cphBuf, seed, counter++);
+                if (rotation == null) {
+                    own = rotation = new CompletableFuture<>();
+                    break;
+                }
+                pending = rotation;
+            }
+            /* a failed rotation is reported to its owner; the next thread in tries again */
+            pending.handle((v, e) -> null).join();
+        }
+
+        try {
+            BswabeCphKey keyCph = Cpabe.encapsulate(policy);
+            byte[] nextCphBuf = Cpabe.serializeHeader(policy, keyCph.cph);
+            byte[] nextSeed = keyCph.key.toBytes();
+
+            synchronized (this) {
+                if (seed != null) Arrays.fill(seed, (byte) 0);
+                cphBuf = nextCphBuf;
+                seed = nextSeed;
+                counter = 0;
+                openedAt = System.nanoTime();
+                return new Message(cphBuf, seed, counter++);
+            }
+        } finally {
+            synchronized (this) {
+                rotation = null;
+            }
+            own.complete(null);
+        }
+    }
+
+    private boolean due(long now) {
+        return cphBuf == null || counter >= maxMessages || now - openedAt >= maxAgeNanos;
+    }
+
+    /* seed is a copy, for the caller to zero once the message key is derived */
+    static final class Message {
+        final byte[] cphBuf;
+        final byte[] seed;
+        final long counter;
+
+        Message(byte[] cphBuf, byte[] seed, long counter) {
+            this.cphBuf = cphBuf;
+            this.seed = seed.clone();
+            this.counter = counter;
+        }
+    }
+}
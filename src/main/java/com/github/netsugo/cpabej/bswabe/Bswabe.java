@@ -1,42 +1,115 @@
 package com.github.netsugo.cpabej.bswabe;
 
 import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
 import it.unisa.dia.gas.jpbc.Pairing;
 import it.unisa.dia.gas.jpbc.PairingParameters;
-import it.unisa.dia.gas.plaf.jpbc.pairing.PairingFactory;
 import it.unisa.dia.gas.plaf.jpbc.pairing.parameters.PropertiesParameters;
 
 import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
 public class Bswabe {
-    private static final String curveParams = "type a\n"
-            + "q 87807107996633125224377819847540498158068831994142082"
-            + "1102865339926647563088022295707862517942266222142315585"
-            + "8769582317459277713367317481324925129998224791\n"
-            + "h 12016012264891146079388821366740534204802954401251311"
-            + "822919615131047207289359704531102844802183906537786776\n"
-            + "r 730750818665451621361119245571504901405976559617\n"
-            + "exp2 159\n" + "exp1 107\n" + "sign1 1\n" + "sign0 1\n";
+    /* policies with at most this many leaves are filled on the calling thread */
+    public static final int PARALLEL_THRESHOLD = 32;
+    /* decryptions using at most this many leaves are evaluated on the calling thread */
+    public static final int PARALLEL_DECRYPT_THRESHOLD = 4;
+    /* default number of hashed attributes kept per loaded public key */
+    public static final int HASH_CACHE_CAPACITY = 4096;
+    /* default number of decryption plans kept per loaded public key */
+    public static final int PLAN_CACHE_CAPACITY = 4096;
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static volatile BswabeMetrics metrics;
 
-    private static Pairing createPairing() {
-        PairingParameters params = new PropertiesParameters()
-                .load(new ByteArrayInputStream(curveParams.getBytes()));
-        return PairingFactory.getPairing(params);
+    /*
+     * Install a listener for operation counts and phase timings, or null to
+     * remove it. Operations already running report to the listener they
+     * started with.
+     */
+    public static void setMetrics(BswabeMetrics listener) {
+        metrics = listener;
+    }
+
+    public static BswabeMetrics metrics() {
+        return metrics;
+    }
+
+    /*
+     * The pairing described by params, in the jPBC properties format, on the
+     * active backend. Asymmetric pairings are rejected, since the scheme
+     * multiplies G_1 and G_2 elements together.
+     */
+    static Pairing createPairing(String params) {
+        return createPairing(params, BswabeBackend.active());
+    }
+
+    static Pairing createPairing(String params, BswabeBackend backend) {
+        PairingParameters parameters = new PropertiesParameters()
+                .load(new ByteArrayInputStream(params.getBytes()));
+        Pairing pairing = backend.createPairing(parameters);
+        if (!pairing.isSymmetric()) {
+            throw new IllegalArgumentException("Pairing is not symmetric; use type A, A1 or E parameters");
+        }
+        return pairing;
+    }
+
+    /*
+     * The pure Java pairing on params that SerializeUtils uses to decompress
+     * points: pairing itself when it runs on JAVA, otherwise a second one.
+     */
+    static Pairing createCodec(String params, Pairing pairing, BswabeBackend backend) {
+        return backend == BswabeBackend.JAVA ? pairing : createPairing(params, BswabeBackend.JAVA);
     }
 
     /*
      * Generate a public key and corresponding master secret key.
      */
     public static void setup(BswabePub pub, BswabeMsk msk) {
-        Pairing pairing = createPairing();
+        setup(pub, msk, BswabeCurve.DEFAULT);
+    }
+
+    public static void setup(BswabePub pub, BswabeMsk msk, BswabeCurve curve) {
+        setup(pub, msk, curve.params);
+    }
+
+    /*
+     * Same as setup(pub, msk), on any symmetric jPBC parameter set. The
+     * parameters are kept in pub.pairingDesc and travel with the public key.
+     */
+    public static void setup(BswabePub pub, BswabeMsk msk, String params) {
+        setup(pub, msk, params, BswabeBackend.active());
+    }
+
+    /*
+     * Same, on the given backend instead of the active one. Throws
+     * IllegalStateException if that backend is not available.
+     */
+    public static void setup(BswabePub pub, BswabeMsk msk, String params, BswabeBackend backend) {
+        Tally t = Tally.open();
+        Pairing pairing = createPairing(params, backend);
 
         Element g = pairing.getG1().newRandomElement();
         Element gp = pairing.getG2().newRandomElement();
@@ -48,38 +121,101 @@ public class Bswabe {
         Element f = g.duplicate().powZn(beta_inv);
         Element h = g.duplicate().powZn(beta);
         Element g_hat_alpha = pairing.pairing(g, g_alpha);
+        Tally.exponentiations(t, 3);
+        Tally.pairings(t, 1);
 
         pub.h = h;
         pub.f = f;
         pub.g = g;
         pub.gp = gp;
         pub.p = pairing;
-        pub.pairingDesc = curveParams;
+        pub.codec = createCodec(params, pairing, backend);
+        pub.pairingDesc = params;
         pub.g_hat_alpha = g_hat_alpha;
 
         msk.beta = beta;
         msk.g_alpha = g_alpha;
+        Tally.close(t, BswabeMetrics.Phase.SETUP);
+    }
+
+    /*
+     * Build fixed-base exponentiation tables for g, h and g_hat_alpha. These
+     * bases never change for a public key, so every later encrypt, keygen and
+     * delegate with this key uses precomputed windows instead of a full
+     * square-and-multiply.
+     */
+    public static void preprocess(BswabePub pub) {
+        pub.g_pp = pub.g.getElementPowPreProcessing();
+        pub.h_pp = pub.h.getElementPowPreProcessing();
+        pub.g_hat_alpha_pp = pub.g_hat_alpha.getElementPowPreProcessing();
+    }
+
+    private static Element pow(Element base, ElementPowPreProcessing pp, Element e, Tally t) {
+        Tally.exponentiations(t, 1);
+        if (pp != null) return pp.powZn(e);
+        return base.duplicate().powZn(e);
     }
 
     /*
      * Generate a private key with the given set of attributes.
      */
     public static BswabePrv keygen(BswabePub pub, BswabeMsk msk, String[] attrs) throws NoSuchAlgorithmException {
+        Tally t = Tally.open();
+        Element beta_inv = msk.beta.duplicate().invert();
+        BswabePrv prv = keygen(pub, msk, beta_inv, attrs, null, t);
+        Tally.close(t, BswabeMetrics.Phase.KEYGEN);
+        return prv;
+    }
+
+    /*
+     * Generate one private key per attribute set, in input order. beta is
+     * inverted once, and every distinct attribute is hashed once, for the
+     * whole batch. The hashing and the per-key work run as tasks on executor;
+     * a null executor means sequential.
+     */
+    public static List<BswabePrv> keygen(BswabePub pub, BswabeMsk msk, List<String[]> attrSets, Executor executor) throws NoSuchAlgorithmException {
+        Tally t = Tally.open();
+        Element beta_inv = msk.beta.duplicate().invert();
+
+        HashMap<String, CompletableFuture<Element>> hashFutures = new HashMap<>();
+        for (String[] attrs : attrSets) {
+            for (String attr : attrs) {
+                hashFutures.computeIfAbsent(attr, a -> supply(() -> hashAttribute(pub, a, t), executor));
+            }
+        }
+        HashMap<String, Element> hashes = new HashMap<>(hashFutures.size() * 2);
+        for (Map.Entry<String, CompletableFuture<Element>> entry : hashFutures.entrySet()) {
+            hashes.put(entry.getKey(), join(entry.getValue()));
+        }
+
+        List<CompletableFuture<BswabePrv>> futures = new ArrayList<>(attrSets.size());
+        for (String[] attrs : attrSets) {
+            futures.add(supply(() -> keygen(pub, msk, beta_inv, attrs, hashes, t), executor));
+        }
+        List<BswabePrv> prvs = new ArrayList<>(attrSets.size());
+        for (CompletableFuture<BswabePrv> future : futures) {
+            prvs.add(join(future));
+        }
+        Tally.close(t, BswabeMetrics.Phase.KEYGEN);
+        return prvs;
+    }
+
+    private static BswabePrv keygen(BswabePub pub, BswabeMsk msk, Element beta_inv, String[] attrs, Map<String, Element> hashes, Tally t) {
         Pairing pairing = pub.p;
 
         Element r = pairing.getZr().newRandomElement();
-        Element g_r = pub.g.duplicate().powZn(r);
-        Element beta_inv = msk.beta.duplicate().invert();
+        Element g_r = pow(pub.g, pub.g_pp, r, t);
         Element prv_d = msk.g_alpha.duplicate().mul(g_r).powZn(beta_inv);
+        Tally.exponentiations(t, 1);
 
         ArrayList<BswabePrvComp> components = new ArrayList<>();
         for (String attr : attrs) {
-            Element h_rp = pairing.getG2().newElement();
-            elementFromString(h_rp, attr);
+            Element h_rp = hashes == null ? hashAttribute(pub, attr, t) : hashes.get(attr).duplicate();
             Element rp = pairing.getZr().newRandomElement();
             h_rp.powZn(rp);
+            Tally.exponentiations(t, 1);
             Element d = g_r.duplicate().mul(h_rp);
-            Element dp = pub.g.duplicate().powZn(rp);
+            Element dp = pow(pub.g, pub.g_pp, rp, t);
 
             BswabePrvComp comp = new BswabePrvComp();
 
@@ -93,18 +229,36 @@ public class Bswabe {
         BswabePrv prv = new BswabePrv();
         prv.comps = components;
         prv.d = prv_d;
+        index(prv);
         return prv;
     }
 
+    private static <T> CompletableFuture<T> supply(Supplier<T> task, Executor executor) {
+        if (executor == null) return CompletableFuture.completedFuture(task.get());
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    /* wait for a task, rethrowing its own RuntimeException rather than a wrapper */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
     /*
      * Delegate a subset of attribute of an existing private key.
      */
     public static BswabePrv delegate(BswabePub pub, BswabePrv prv_src, String[] attrs_subset) throws NoSuchAlgorithmException, IllegalArgumentException {
+        Tally t = Tally.open();
         Pairing pairing = pub.p;
 
         Element rt = pairing.getZr().newRandomElement();
         Element f_at_rt = pub.f.duplicate().powZn(rt);
-        Element g_rt = pub.g.duplicate().powZn(rt);
+        Tally.exponentiations(t, 1);
+        Element g_rt = pow(pub.g, pub.g_pp, rt, t);
 
         Element prv_d = prv_src.d.duplicate().mul(f_at_rt);
         ArrayList<BswabePrvComp> prv_comps = new ArrayList<>();
@@ -113,15 +267,15 @@ public class Bswabe {
             BswabePrvComp comp_src = searchBswabePrvComp(s, prv_src);
             if (comp_src == null) throw new IllegalArgumentException("comp_src == null");
 
-            Element h_rtp = pairing.getG2().newElement();
-            elementFromString(h_rtp, s);
+            Element h_rtp = hashAttribute(pub, s, t);
             Element rtp = pairing.getZr().newRandomElement();
             h_rtp.powZn(rtp);
+            Tally.exponentiations(t, 1);
 
             BswabePrvComp comp = new BswabePrvComp();
             comp.attr = s;
             comp.d = g_rt.duplicate().mul(h_rtp).mul(comp_src.d);
-            comp.dp = pub.g.duplicate().powZn(rtp).mul(comp_src.dp);
+            comp.dp = pow(pub.g, pub.g_pp, rtp, t).mul(comp_src.dp);
 
             prv_comps.add(comp);
         }
@@ -129,17 +283,27 @@ public class Bswabe {
         BswabePrv prv = new BswabePrv();
         prv.d = prv_d;
         prv.comps = prv_comps;
+        index(prv);
+        Tally.close(t, BswabeMetrics.Phase.DELEGATE);
 
         return prv;
     }
 
-    private static BswabePrvComp searchBswabePrvComp(String attr, BswabePrv prv_src) {
-        for (BswabePrvComp bswabePrvComp : prv_src.comps) {
-            if (bswabePrvComp.attr.equals(attr)) {
-                return bswabePrvComp;
-            }
+    /*
+     * Build the attribute -> component index of a private key. When an
+     * attribute repeats, the first component wins, as with a linear scan.
+     */
+    public static void index(BswabePrv prv) {
+        HashMap<String, Integer> index = new HashMap<>(prv.comps.size() * 2);
+        for (int i = 0; i < prv.comps.size(); i++) {
+            index.putIfAbsent(prv.comps.get(i).attr, i);
         }
-        return null;
+        prv.index = index;
+    }
+
+    private static BswabePrvComp searchBswabePrvComp(String attr, BswabePrv prv_src) {
+        int i = searchAttri(attr, prv_src);
+        return i < 0 ? null : prv_src.comps.get(i);
     }
 
     /*
@@ -167,23 +331,54 @@ public class Bswabe {
      * retrieved by calling bswabe_error().
      */
     public static BswabeCphKey encrypt(BswabePub pub, String policy) throws ParseException, NoSuchAlgorithmException {
+        return encrypt(pub, compile(pub, policy), null, PARALLEL_THRESHOLD);
+    }
+
+    /*
+     * Same as encrypt(pub, policy), but subtrees with more than threshold
+     * leaves are filled as separate tasks on pool. Each node gets its own
+     * polynomial and share exactly as in the sequential walk, so the
+     * ciphertext has the same structure. A null pool means sequential.
+     */
+    public static BswabeCphKey encrypt(BswabePub pub, String policy, ForkJoinPool pool, int threshold) throws ParseException, NoSuchAlgorithmException {
+        return encrypt(pub, compile(pub, policy), pool, threshold);
+    }
+
+    /*
+     * Encrypt under a policy from compile(pub, policy). Parsing and leaf
+     * hashing were done once at compile time, so only the per-message random
+     * shares are computed here.
+     */
+    public static BswabeCphKey encrypt(BswabePub pub, BswabeCompiledPolicy policy) {
+        return encrypt(pub, policy, null, PARALLEL_THRESHOLD);
+    }
+
+    public static BswabeCphKey encrypt(BswabePub pub, BswabeCompiledPolicy policy, ForkJoinPool pool, int threshold) {
+        Tally t = Tally.open();
         Pairing pairing = pub.p;
         Element s = pairing.getZr().newRandomElement();
         Element m = pairing.getGT().newRandomElement();
-        Element cs = pub.g_hat_alpha.duplicate().powZn(s).mul(m);
-        Element c = pub.h.duplicate().powZn(s);
-        BswabePolicy parsedPolicy = parsePolicyPostfix(policy);
+        Element cs = pow(pub.g_hat_alpha, pub.g_hat_alpha_pp, s, t).mul(m);
+        Element c = pow(pub.h, pub.h_pp, s, t);
+        BswabePolicy filledPolicy = baseNode(policy.k, policy.attr);
 
-        fillPolicy(parsedPolicy, pub, s);
+        Tally fill = Tally.open();
+        if (pool == null || policy.leaves <= threshold) {
+            fillPolicy(filledPolicy, policy, pub, s, t);
+        } else {
+            pool.invoke(new FillPolicyTask(filledPolicy, policy, pub, s, threshold, t));
+        }
+        Tally.close(fill, BswabeMetrics.Phase.FILL_POLICY);
 
         BswabeCph cph = new BswabeCph();
         cph.c = c;
         cph.cs = cs;
-        cph.p = parsedPolicy;
+        cph.p = filledPolicy;
 
         BswabeCphKey keyCph = new BswabeCphKey();
         keyCph.cph = cph;
         keyCph.key = m;
+        Tally.close(t, BswabeMetrics.Phase.ENCRYPT);
 
         return keyCph;
     }
@@ -191,100 +386,323 @@ public class Bswabe {
     /*
      * Decrypt the specified ciphertext using the given private key, filling in
      * the provided element m (which need not be initialized) with the result.
+     *
+     * Inverted pairings become pairings with a negated G1 argument, which
+     * saves the G_T inversions. Every pair whose Lagrange exponent is one,
+     * including e(c, d), goes into a single product pairing call. jPBC only
+     * runs such a product as one Miller loop with one final exponentiation
+     * when the pairing map reports isProductPairingSupported, and no
+     * BswabeCurve preset does with its default map: there each pair still
+     * costs a full pairing. The one jPBC map that does ("method
+     * miller-affine" for type A and A1) is slower per pairing than the
+     * default, and slower overall at the gate widths in GateWidthBenchmark.
+     * A leaf with any other exponent is evaluated as one two-pair product and
+     * raised in G_T, because a G_T exponentiation costs far less than moving
+     * the exponent onto both G_1 arguments.
      */
     public static Element decrypt(BswabePub pub, BswabePrv prv, BswabeCph cph) {
-        checkSatisfy(cph.p, prv);
-        if (!cph.p.satisfiable) {
+        return decrypt(pub, prv, cph, null, PARALLEL_DECRYPT_THRESHOLD);
+    }
+
+    /*
+     * Same as decrypt(pub, prv, cph), but when more than threshold leaves are
+     * needed, each leaf term is evaluated as a separate task on executor and
+     * the results are multiplied together on the calling thread. A null
+     * executor means sequential.
+     */
+    public static Element decrypt(BswabePub pub, BswabePrv prv, BswabeCph cph, Executor executor, int threshold) {
+        BswabeDecPlan plan = cachedPlan(pub, prv, cph.p);
+        if (plan == null) {
             throw new RuntimeException("Attributes in key do not satisfy policy");
         }
+        return decrypt(pub, prv, cph, plan, executor, threshold);
+    }
 
-        pickSatisfyMinLeaves(cph.p);
-
-        Element r = decFlatten(cph.p, prv, pub);
-        Element t = pub.p.pairing(cph.c, prv.d).invert();
-        Element m = cph.cs.duplicate().mul(r).mul(t);
+    /*
+     * Decrypt with a plan from plan(pub, prv, cph.p). Neither the ciphertext
+     * nor the plan is modified.
+     */
+    public static Element decrypt(BswabePub pub, BswabePrv prv, BswabeCph cph, BswabeDecPlan plan, Executor executor, int threshold) {
+        Tally t = Tally.open();
+        ArrayList<BswabePolicy> leaves = new ArrayList<>();
+        collectLeaves(leaves, cph.p);
+
+        ArrayList<LeafTerm> terms = new ArrayList<>(plan.size());
+        for (int i = 0; i < plan.size(); i++) {
+            BswabePolicy leaf = leaves.get(plan.leaves[i]);
+            terms.add(new LeafTerm(leaf, prv.comps.get(plan.comps[i]), plan.exps[i]));
+        }
 
+        Element r;
+        if (executor == null || terms.size() <= threshold) {
+            r = decSequential(pub.p, prv, cph, terms, t);
+        } else {
+            r = decParallel(pub.p, prv, cph, terms, executor, t);
+        }
+        Element m = cph.cs.duplicate().mul(r);
+        Tally.close(t, BswabeMetrics.Phase.DECRYPT);
         return m;
     }
 
-    private static Element decFlatten(BswabePolicy p, BswabePrv prv, BswabePub pub) {
-        Element r = pub.p.getGT().newElement().setToOne();
-        Element one = pub.p.getZr().newElement().setToOne();
-        decNodeFlatten(r, one, p, prv, pub);
-        return r;
+    /*
+     * Work out which leaves of p the key uses: as few as possible, each with
+     * its key component and Lagrange exponent. Returns null if the key does
+     * not satisfy p.
+     */
+    public static BswabeDecPlan plan(BswabePub pub, BswabePrv prv, BswabePolicy p) {
+        Tally t = Tally.open();
+        SatNode root = checkSatisfy(p, prv, new int[1]);
+        if (!root.satisfiable) {
+            Tally.close(t, BswabeMetrics.Phase.PLAN);
+            return null;
+        }
+
+        pickSatisfyMinLeaves(root);
+
+        ArrayList<SatNode> leaves = new ArrayList<>();
+        ArrayList<Element> exps = new ArrayList<>();
+        decNodeFlatten(leaves, exps, pub.p.getZr().newOneElement(), root);
+
+        int n = leaves.size();
+        int[] ordinals = new int[n];
+        int[] comps = new int[n];
+        for (int i = 0; i < n; i++) {
+            ordinals[i] = leaves.get(i).leaf;
+            comps[i] = leaves.get(i).attri;
+        }
+        BswabeDecPlan plan = new BswabeDecPlan(ordinals, comps, exps.toArray(new Element[n]));
+        Tally.close(t, BswabeMetrics.Phase.PLAN);
+        return plan;
     }
 
-    private static void decNodeFlatten(Element r, Element exp, BswabePolicy p, BswabePrv prv, BswabePub pub) {
-        if (p.children == null || p.children.length == 0)
-            decLeafFlatten(r, exp, p, prv, pub);
-        else
-            decInternalFlatten(r, exp, p, prv, pub);
+    /*
+     * plan(pub, prv, p) through pub.planCache. The plan only depends on the
+     * attributes of the key, in component order, and on the shape of the
+     * policy (its gates and leaf attributes), so it is shared by every
+     * ciphertext with that shape and every key with those attributes.
+     * Unsatisfiable pairs are not cached.
+     */
+    public static BswabeDecPlan cachedPlan(BswabePub pub, BswabePrv prv, BswabePolicy p) {
+        LruCache<String, BswabeDecPlan> cache = pub.planCache;
+        if (cache == null) return plan(pub, prv, p);
+
+        StringBuilder sb = new StringBuilder();
+        fingerprint(sb, p);
+        sb.append('|');
+        for (BswabePrvComp comp : prv.comps) {
+            sb.append(comp.attr.length()).append(':').append(comp.attr);
+        }
+        String key = sb.toString();
+
+        BswabeDecPlan plan = cache.get(key);
+        if (plan == null) {
+            plan = plan(pub, prv, p);
+            if (plan != null) cache.put(key, plan);
+        }
+        return plan;
     }
 
-    private static void decLeafFlatten(Element r, Element exp, BswabePolicy p, BswabePrv prv, BswabePub pub) {
-        BswabePrvComp c = prv.comps.get(p.attri);
+    /* the policy in postfix order, with length-prefixed attributes so no two shapes collide */
+    private static void fingerprint(StringBuilder sb, BswabePolicy p) {
+        if (p.children == null || p.children.length == 0) {
+            sb.append('L').append(p.attr.length()).append(':').append(p.attr);
+        } else {
+            for (BswabePolicy child : p.children) fingerprint(sb, child);
+            sb.append('G').append(p.k).append('/').append(p.children.length);
+        }
+    }
 
-        Element t = pub.p.pairing(p.cp, c.dp).invert();
-        Element s = pub.p.pairing(p.c, c.d).mul(t).powZn(exp);
+    /* per-node scratch state of plan, mirroring the policy tree */
+    private static class SatNode {
+        /* k=1 if leaf, otherwise threshold */
+        int k;
+        /* null for leaves */
+        SatNode[] children;
+        boolean satisfiable;
+        int min_leaves;
+        /* leaf ordinal and matching key component, only for leaves */
+        int leaf;
+        int attri;
+        /* chosen children, counting from 1 */
+        int[] satl;
+    }
 
-        r.mul(s);
+    private static void collectLeaves(List<BswabePolicy> leaves, BswabePolicy p) {
+        if (p.children == null || p.children.length == 0) {
+            leaves.add(p);
+        } else {
+            for (BswabePolicy child : p.children) collectLeaves(leaves, child);
+        }
     }
 
-    private static void decInternalFlatten(Element r, Element exp, BswabePolicy p, BswabePrv prv, BswabePub pub) {
-        Element t = pub.p.getZr().newElement();
-        ArrayList<Integer> satl = p.satl;
+    private static class LeafTerm {
+        final BswabePolicy p;
+        final BswabePrvComp comp;
+        final Element exp;
 
-        for (Integer sat : satl) {
-            lagrangeCoef(t, satl, sat);
+        LeafTerm(BswabePolicy p, BswabePrvComp comp, Element exp) {
+            this.p = p;
+            this.comp = comp;
+            this.exp = exp;
+        }
+
+        /* e(c, d) / e(cp, dp) raised to exp */
+        Element evaluate(Pairing pairing, Tally t) {
+            Element cp = p.cp.duplicate().negate();
+            Element s = pairing.pairing(new Element[]{p.c, cp}, new Element[]{comp.d, comp.dp});
+            Tally.pairings(t, 2);
+            if (exp.isOne()) return s;
+            Tally.exponentiations(t, 1);
+            return s.powZn(exp);
+        }
+    }
+
+    private static Element decSequential(Pairing pairing, BswabePrv prv, BswabeCph cph, List<LeafTerm> terms, Tally t) {
+        ArrayList<Element> in1 = new ArrayList<>();
+        ArrayList<Element> in2 = new ArrayList<>();
+        Element r = pairing.getGT().newOneElement();
+
+        in1.add(cph.c.duplicate().negate());
+        in2.add(prv.d);
+        for (LeafTerm term : terms) {
+            if (term.exp.isOne()) {
+                in1.add(term.p.c);
+                in2.add(term.comp.d);
+                in1.add(term.p.cp.duplicate().negate());
+                in2.add(term.comp.dp);
+            } else {
+                r.mul(term.evaluate(pairing, t));
+            }
+        }
+
+        Element[] a = in1.toArray(new Element[0]);
+        Element[] b = in2.toArray(new Element[0]);
+        Tally.pairings(t, a.length);
+        return r.mul(pairing.pairing(a, b));
+    }
+
+    private static Element decParallel(Pairing pairing, BswabePrv prv, BswabeCph cph, List<LeafTerm> terms, Executor executor, Tally t) {
+        List<CompletableFuture<Element>> futures = new ArrayList<>(terms.size());
+        for (LeafTerm term : terms) {
+            futures.add(CompletableFuture.supplyAsync(() -> term.evaluate(pairing, t), executor));
+        }
+
+        Element r = pairing.pairing(cph.c.duplicate().negate(), prv.d);
+        Tally.pairings(t, 1);
+        for (CompletableFuture<Element> future : futures) {
+            r.mul(join(future));
+        }
+        return r;
+    }
+
+    private static void decNodeFlatten(List<SatNode> leaves, List<Element> exps, Element exp, SatNode p) {
+        if (p.children == null) {
+            leaves.add(p);
+            exps.add(exp);
+        } else
+            decInternalFlatten(leaves, exps, exp, p);
+    }
+
+    private static void decInternalFlatten(List<SatNode> leaves, List<Element> exps, Element exp, SatNode p) {
+        Element t = exp.getField().newElement();
+        int[] satl = p.satl;
+        BigInteger[] coefs = lagrangeCoefs(satl, exp.getField().getOrder());
+
+        for (int i = 0; i < satl.length; i++) {
+            t.set(coefs[i]);
             Element expnew = exp.duplicate().mul(t);
-            decNodeFlatten(r, expnew, p.children[sat - 1], prv, pub);
+            decNodeFlatten(leaves, exps, expnew, p.children[satl[i] - 1]);
         }
     }
 
-    private static void lagrangeCoef(Element r, ArrayList<Integer> s, int i) {
-        Element t = r.duplicate();
+    /*
+     * Lagrange coefficients at 0 for the points in s, modulo order. The
+     * coefficient of i is the product over j != i of j / (j - i). Numerators
+     * and denominators are products of small integers, so they are built with
+     * BigInteger, and all denominators are inverted together with one
+     * modInverse (Montgomery's trick) instead of one inversion per pair.
+     */
+    private static BigInteger[] lagrangeCoefs(int[] s, BigInteger order) {
+        int n = s.length;
+        BigInteger[] num = new BigInteger[n];
+        BigInteger[] den = new BigInteger[n];
+        for (int a = 0; a < n; a++) {
+            long nv = 1, dv = 1;
+            BigInteger nb = BigInteger.ONE, db = BigInteger.ONE;
+            for (int b = 0; b < n; b++) {
+                if (b == a) continue;
+                /* flush before the long products could overflow; both factors are below 2^31 */
+                if (Math.abs(nv) >= 1L << 31) {
+                    nb = nb.multiply(BigInteger.valueOf(nv));
+                    nv = 1;
+                }
+                if (Math.abs(dv) >= 1L << 31) {
+                    db = db.multiply(BigInteger.valueOf(dv));
+                    dv = 1;
+                }
+                nv *= s[b];
+                dv *= s[b] - s[a];
+            }
+            num[a] = nb.multiply(BigInteger.valueOf(nv)).mod(order);
+            den[a] = db.multiply(BigInteger.valueOf(dv)).mod(order);
+        }
+
+        /* prefix[a] = den[0] * ... * den[a - 1] */
+        BigInteger[] prefix = new BigInteger[n];
+        BigInteger acc = BigInteger.ONE;
+        for (int a = 0; a < n; a++) {
+            prefix[a] = acc;
+            acc = acc.multiply(den[a]).mod(order);
+        }
+        BigInteger inv = acc.modInverse(order);
 
-        r.setToOne();
-        s.stream().filter(j -> j != i).forEach(j -> {
-            t.set(-j);
-            r.mul(t); /* num_muls++; */
-            t.set(i - j);
-            t.invert();
-            r.mul(t); /* num_muls++; */
-        });
+        BigInteger[] coefs = new BigInteger[n];
+        for (int a = n - 1; a >= 0; a--) {
+            BigInteger denInv = inv.multiply(prefix[a]).mod(order);
+            inv = inv.multiply(den[a]).mod(order);
+            coefs[a] = num[a].multiply(denInv).mod(order);
+        }
+        return coefs;
     }
 
-    private static void pickSatisfyMinLeaves(BswabePolicy p) {
-        if (p.children == null || p.children.length == 0)
+    private static void pickSatisfyMinLeaves(SatNode p) {
+        if (p.children == null)
             p.min_leaves = 1;
         else {
             int len = p.children.length;
 
-            Arrays.stream(p.children)
-                    .filter(policy -> policy.satisfiable)
-                    .forEach(Bswabe::pickSatisfyMinLeaves);
+            for (SatNode child : p.children) {
+                if (child.satisfiable) pickSatisfyMinLeaves(child);
+            }
 
-            List<Integer> c = IntStream.range(0, len).boxed()
-                    .sorted(new IntegerComparator(p))
-                    .collect(Collectors.toList());
+            /* children by min_leaves, ties in child order: min_leaves in the high word, index in the low word */
+            long[] c = new long[len];
+            for (int i = 0; i < len; i++) {
+                c[i] = (long) p.children[i].min_leaves << 32 | i;
+            }
+            Arrays.sort(c);
 
-            p.satl = new ArrayList<>();
+            int[] satl = new int[p.k];
             p.min_leaves = 0;
             int l = 0;
 
             for (int i = 0; i < len && l < p.k; i++) {
-                int c_i = c.get(i); /* c[i] */
+                int c_i = (int) c[i]; /* c[i] */
                 if (p.children[c_i].satisfiable) {
-                    l++;
                     p.min_leaves += p.children[c_i].min_leaves;
-                    int k = c_i + 1;
-                    p.satl.add(k);
+                    satl[l++] = c_i + 1;
                 }
             }
+            p.satl = l == p.k ? satl : Arrays.copyOf(satl, l);
         }
     }
 
     private static int searchAttri(String attr, BswabePrv prv) {
+        if (prv.index != null) {
+            Integer i = prv.index.get(attr);
+            return i == null ? -1 : i;
+        }
+
         int i = 0;
         for (BswabePrvComp comp : prv.comps) {
             if (comp.attr.compareTo(attr) == 0) {
@@ -296,57 +714,162 @@ public class Bswabe {
         return -1;
     }
 
-    private static void checkSatisfy(BswabePolicy p, BswabePrv prv) {
+    /*
+     * Whether a key with these attributes satisfies p. Only the attribute
+     * strings and gates are looked at, so p may come from
+     * SerializeUtils.unserializeBswabePolicy.
+     */
+    public static boolean satisfies(BswabePolicy p, Set<String> attributes) {
         if (p.children == null || p.children.length == 0) {
-            int attri = searchAttri(p.attr, prv);
-            if (attri >= 0) {
-                p.satisfiable = true;
-                p.attri = attri;
-            } else {
-                p.satisfiable = false;
-                p.attri = 0;
-            }
+            return attributes.contains(p.attr);
+        }
+
+        int l = 0;
+        for (BswabePolicy child : p.children) {
+            if (satisfies(child, attributes) && ++l >= p.k) return true;
+        }
+        return false;
+    }
+
+    /* p written back as a postfix policy string that compile(pub, s) reads as the same tree */
+    public static String policyString(BswabePolicy p) {
+        return policyString(p, BswabeStackOrder.BOTTOM);
+    }
+
+    public static String policyString(BswabePolicy p, BswabeStackOrder order) {
+        StringBuilder sb = new StringBuilder();
+        if (order == BswabeStackOrder.TOP) {
+            policyString(sb, p);
         } else {
-            Arrays.stream(p.children)
-                    .forEach(policy -> checkSatisfy(policy, prv));
+            /*
+             * the stack is read like a queue, so write the tree level by
+             * level from the root, children last to first, and reverse it
+             */
+            ArrayList<BswabePolicy> levels = new ArrayList<>();
+            levels.add(p);
+            for (int i = 0; i < levels.size(); i++) {
+                BswabePolicy[] children = levels.get(i).children;
+                if (children == null) continue;
+                for (int j = children.length - 1; j >= 0; j--) levels.add(children[j]);
+            }
+            for (int i = levels.size() - 1; i >= 0; i--) {
+                BswabePolicy node = levels.get(i);
+                if (node.children == null || node.children.length == 0) {
+                    sb.append(node.attr);
+                } else {
+                    sb.append(node.k).append("of").append(node.children.length);
+                }
+                if (i > 0) sb.append(' ');
+            }
+        }
+        return sb.toString();
+    }
 
-            int l = (int) Arrays.stream(p.children)
-                    .filter(policy -> policy.satisfiable)
-                    .count();
+    private static void policyString(StringBuilder sb, BswabePolicy p) {
+        if (p.children == null || p.children.length == 0) {
+            sb.append(p.attr);
+        } else {
+            for (BswabePolicy child : p.children) {
+                policyString(sb, child);
+                sb.append(' ');
+            }
+            sb.append(p.k).append("of").append(p.children.length);
+        }
+    }
 
-            p.satisfiable = l >= p.k;
+    /* leaf counts the leaves visited so far */
+    private static SatNode checkSatisfy(BswabePolicy p, BswabePrv prv, int[] leaf) {
+        SatNode s = new SatNode();
+        s.k = p.k;
+        if (p.children == null || p.children.length == 0) {
+            int attri = searchAttri(p.attr, prv);
+            s.leaf = leaf[0]++;
+            s.satisfiable = attri >= 0;
+            s.attri = Math.max(attri, 0);
+        } else {
+            s.children = new SatNode[p.children.length];
+            int l = 0;
+            for (int i = 0; i < p.children.length; i++) {
+                s.children[i] = checkSatisfy(p.children[i], prv, leaf);
+                if (s.children[i].satisfiable) l++;
+            }
+            s.satisfiable = l >= p.k;
         }
+        return s;
     }
 
-    private static void fillPolicy(BswabePolicy p, BswabePub pub, Element e) throws NoSuchAlgorithmException {
-        Pairing pairing = pub.p;
+    private static void fillPolicy(BswabePolicy p, BswabeCompiledPolicy compiled, BswabePub pub, Element e, Tally t) {
         p.q = randPoly(p.k - 1, e);
 
-        if (p.children == null || p.children.length == 0) {
-            Element h = pairing.getG2().newElement();
+        if (compiled.children == null) {
             Element coe = p.q.coefficients.get(0);
-            p.c = pub.g.duplicate().powZn(coe);
-            p.cp = elementFromString(h, p.attr).powZn(coe);
+            p.c = pow(pub.g, pub.g_pp, coe, t);
+            p.cp = compiled.h.duplicate().powZn(coe);
+            Tally.exponentiations(t, 1);
         } else {
-            int i = 0;
-            for (BswabePolicy policy : p.children) {
-                Element r = pairing.getZr().newElement(i + 1);
-                Element t = evalPoly(p.q, r);
-                fillPolicy(policy, pub, t);
-                i++;
+            p.children = new BswabePolicy[compiled.children.length];
+            for (int i = 0; i < compiled.children.length; i++) {
+                BswabeCompiledPolicy child = compiled.children[i];
+                p.children[i] = baseNode(child.k, child.attr);
+                fillPolicy(p.children[i], child, pub, share(p.q, i), t);
             }
         }
+    }
 
+    /* the share of the i-th child (counting from 0) is q(i + 1) */
+    private static Element share(BswabePolynomial q, int i) {
+        return evalPoly(q, i + 1);
     }
 
-    private static Element evalPoly(BswabePolynomial q, Element x) {
-        Element t = x.duplicate().setToOne();
-        Element r = x.duplicate().setToZero();
+    private static class FillPolicyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BswabePolicy p;
+        private final BswabeCompiledPolicy compiled;
+        private final BswabePub pub;
+        private final Element e;
+        private final int threshold;
+        private final Tally t;
+
+        FillPolicyTask(BswabePolicy p, BswabeCompiledPolicy compiled, BswabePub pub, Element e, int threshold, Tally t) {
+            this.p = p;
+            this.compiled = compiled;
+            this.pub = pub;
+            this.e = e;
+            this.threshold = threshold;
+            this.t = t;
+        }
+
+        @Override
+        protected void compute() {
+            /* a leaf has nothing to fork, whatever the threshold */
+            if (compiled.children == null || compiled.leaves <= threshold) {
+                fillPolicy(p, compiled, pub, e, t);
+                return;
+            }
+
+            p.q = randPoly(p.k - 1, e);
+            p.children = new BswabePolicy[compiled.children.length];
+            FillPolicyTask[] tasks = new FillPolicyTask[compiled.children.length];
+            for (int i = 0; i < compiled.children.length; i++) {
+                BswabeCompiledPolicy child = compiled.children[i];
+                p.children[i] = baseNode(child.k, child.attr);
+                tasks[i] = new FillPolicyTask(p.children[i], child, pub, share(p.q, i), threshold, t);
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /*
+     * Horner's rule. The point is a small child index, so every step is a
+     * multiplication by an int rather than by a full Zr element.
+     */
+    private static Element evalPoly(BswabePolynomial q, int x) {
+        List<Element> coefficients = q.coefficients;
+        Element r = coefficients.get(coefficients.size() - 1).duplicate();
 
-        for (Element coe : q.coefficients) {
-            Element s = coe.duplicate().mul(t);
-            r.add(s);
-            t.mul(x);
+        for (int i = coefficients.size() - 2; i >= 0; i--) {
+            r.mul(x).add(coefficients.get(i));
         }
 
         return r;
@@ -362,14 +885,22 @@ public class Bswabe {
         return q;
     }
 
-    private static BswabePolicy parsePolicyPostfix(String s) throws ParseException {
-        ArrayList<BswabePolicy> stack = new ArrayList<>();
-        List<String> splitPolicy = Arrays.stream(s.split("\\s+"))
-                .filter(tok -> !tok.isEmpty())
-                .collect(Collectors.toList());
-        for (String tok : splitPolicy) {
+    /*
+     * Parse a postfix policy string (see encrypt) and hash every leaf
+     * attribute. The result can be passed to encrypt any number of times, from
+     * any number of threads. Gates take their children from the bottom of the
+     * stack, as in 0.1.0; see BswabeStackOrder.
+     */
+    public static BswabeCompiledPolicy compile(BswabePub pub, String s) throws ParseException {
+        return compile(pub, s, BswabeStackOrder.BOTTOM);
+    }
+
+    public static BswabeCompiledPolicy compile(BswabePub pub, String s, BswabeStackOrder order) throws ParseException {
+        Tally t = Tally.open();
+        ArrayList<BswabeCompiledPolicy> stack = new ArrayList<>();
+        for (String tok : tokenize(s)) {
             if (!tok.contains("of")) {
-                stack.add(baseNode(1, tok));
+                stack.add(new BswabeCompiledPolicy(1, tok, hashAttribute(pub, tok, t), null));
             } else {
                 /* parse kof n node */
                 String[] k_n = tok.split("of");
@@ -386,14 +917,15 @@ public class Bswabe {
                     throw ParseException.create(s, "stack underflow at", tok);
                 }
 
-                /* pop n things and fill in children */
-                BswabePolicy node = baseNode(k, null);
-                List<BswabePolicy> headList = stack.subList(0, n);
-                node.children = headList.toArray(new BswabePolicy[n]);
-                stack.removeAll(headList);
+                /* pop n things from the chosen end and fill in children */
+                List<BswabeCompiledPolicy> popped = order == BswabeStackOrder.TOP
+                        ? stack.subList(stack.size() - n, stack.size())
+                        : stack.subList(0, n);
+                BswabeCompiledPolicy[] children = popped.toArray(new BswabeCompiledPolicy[n]);
+                popped.clear();
 
                 /* push result */
-                stack.add(node);
+                stack.add(new BswabeCompiledPolicy(k, null, null, children));
             }
         }
 
@@ -403,9 +935,28 @@ public class Bswabe {
             throw ParseException.create(s, "empty policy");
         }
 
+        Tally.close(t, BswabeMetrics.Phase.COMPILE);
         return stack.get(0);
     }
 
+    /* split on the characters matched by \s, without a regex */
+    private static List<String> tokenize(String s) {
+        ArrayList<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            boolean space = ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+            if (space && start >= 0) {
+                tokens.add(s.substring(start, i));
+                start = -1;
+            } else if (!space && start < 0) {
+                start = i;
+            }
+        }
+        if (start >= 0) tokens.add(s.substring(start));
+        return tokens;
+    }
+
     private static BswabePolicy baseNode(int k, String s) {
         BswabePolicy p = new BswabePolicy();
 
@@ -416,25 +967,28 @@ public class Bswabe {
         return p;
     }
 
-    private static Element elementFromString(Element h, String s) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("SHA-1");
-        byte[] digest = md.digest(s.getBytes());
+    private static Element elementFromString(Element h, String s) {
+        byte[] digest = SHA1.get().digest(s.getBytes());
         return h.setFromHash(digest, 0, digest.length);
     }
 
-    private static class IntegerComparator implements Comparator<Integer> {
-        public final BswabePolicy policy;
-
-        public IntegerComparator(BswabePolicy p) {
-            this.policy = p;
+    /*
+     * Hash an attribute into G_2 through the public key's cache. The cached
+     * element is never handed out, only duplicates of it.
+     */
+    private static Element hashAttribute(BswabePub pub, String attr, Tally t) {
+        LruCache<String, Element> cache = pub.hashCache;
+        if (cache == null) {
+            Tally.hashes(t, 1);
+            return elementFromString(pub.p.getG2().newElement(), attr);
         }
 
-        @Override
-        public int compare(Integer o1, Integer o2) {
-            int k = policy.children[o1].min_leaves;
-            int l = policy.children[o2].min_leaves;
-
-            return Integer.compare(k, l);
+        Element h = cache.get(attr);
+        if (h == null) {
+            Tally.hashes(t, 1);
+            h = elementFromString(pub.p.getG2().newElement(), attr);
+            cache.put(attr, h);
         }
+        return h.duplicate();
     }
 }
@@ -0,0 +1,93 @@
+package com.github.netsugo.cpabej.bswabe;
+
+import it.unisa.dia.gas.jpbc.Pairing;
+import it.unisa.dia.gas.jpbc.PairingParameters;
+import it.unisa.dia.gas.plaf.jpbc.pairing.PairingFactory;
+import it.unisa.dia.gas.plaf.jpbc.pbc.PBCPairing;
+
+import java.util.Locale;
+import java.util.logging.Logger;
+
+public enum BswabeBackend {
+    /*
+     * The arithmetic behind every pairing Bswabe creates. JAVA is jPBC's own
+     * implementation and always works. PBC runs the group operations and
+     * pairings in libpbc through the jpbc-pbc wrapper in lib/, which needs
+     * JNA on the class path and the jpbc-pbc native library on
+     * java.library.path.
+     *
+     * PBC is experimental and not a drop-in replacement for JAVA. Serialized
+     * keys and ciphertexts are meant not to depend on the backend that wrote
+     * them: compressed points are always jPBC's encoding, PBC-backed writers
+     * store points uncompressed, and readers accept both (see
+     * BswabePub.codec). Whether libpbc's uncompressed point bytes, G_T bytes
+     * and attribute hashes match jPBC's has not been verified, so blobs
+     * written under one backend may not read or decrypt under the other.
+     *
+     * The backend is chosen once, on first use, from the system property
+     * cpabej.backend: "java" (the default), "pbc", or "auto", which takes
+     * PBC when it is available. Asking for PBC on a host without it falls
+     * back to JAVA with a warning. The choice is logged at INFO.
+     */
+    JAVA,
+    PBC;
+
+    public static final String PROPERTY = "cpabej.backend";
+
+    private static final Logger LOGGER = Logger.getLogger(BswabeBackend.class.getName());
+
+    /* holders, so the property is read and the library probed on first use */
+    private static final class Active {
+        static final BswabeBackend BACKEND = select(System.getProperty(PROPERTY, "java"));
+    }
+
+    private static final class PbcProbe {
+        static final boolean AVAILABLE = probe();
+
+        private static boolean probe() {
+            try {
+                return PairingFactory.getInstance().isPBCAvailable();
+            } catch (LinkageError e) {
+                return false;
+            }
+        }
+    }
+
+    /* the backend used by setup and by loading a public key */
+    public static BswabeBackend active() {
+        return Active.BACKEND;
+    }
+
+    public boolean isAvailable() {
+        return this == JAVA || PbcProbe.AVAILABLE;
+    }
+
+    Pairing createPairing(PairingParameters params) {
+        if (this == JAVA) return PairingFactory.getPairing(params);
+        if (!isAvailable()) throw new IllegalStateException("PBC backend is not available on this host");
+        return new PBCPairing(params);
+    }
+
+    private static BswabeBackend select(String requested) {
+        String name = requested.trim().toLowerCase(Locale.ROOT);
+        BswabeBackend backend;
+        if (name.equals("java")) {
+            backend = JAVA;
+        } else if (name.equals("pbc")) {
+            backend = PBC.isAvailable() ? PBC : JAVA;
+            if (backend == JAVA) {
+                LOGGER.warning(PROPERTY + "=pbc, but libpbc or its JNA wrapper is not available; using pure Java");
+            }
+        } else {
+            if (!name.equals("auto")) {
+                LOGGER.warning("Unknown " + PROPERTY + "=" + requested + "; expected java, pbc or auto");
+            }
+            backend = PBC.isAvailable() ? PBC : JAVA;
+        }
+
+        LOGGER.info("CP-ABE arithmetic backend: " + backend
+                + (backend == PBC ? " (native libpbc)" : " (pure Java jPBC)")
+                + ", requested " + name);
+        return backend;
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.netsugo.cpabej.bswabe;
+
+import it.unisa.dia.gas.jpbc.Element;
+
+public class BswabeCompiledPolicy {
+    /*
+     * A policy parsed once by Bswabe.compile: the threshold tree plus the
+     * hashed G_2 base of every leaf. Nothing in it changes after compile, so
+     * one instance can be shared by any number of concurrent encryptions
+     * under the public key it was compiled with.
+     */
+
+    /* k=1 if leaf, otherwise threshold */
+    final int k;
+    /* attribute string if leaf, otherwise null */
+    final String attr;
+    /* G_2 hash of attr, only for leaves; only duplicates are ever modified */
+    final Element h;
+    /* null for leaves */
+    final BswabeCompiledPolicy[] children;
+    /* number of leaves under this node */
+    final int leaves;
+
+    BswabeCompiledPolicy(int k, String attr, Element h, BswabeCompiledPolicy[] children) {
+        this.k = k;
+        this.attr = attr;
+        this.h = h;
+        this.children = children;
+
+        int leaves = 0;
+        if (children == null) {
+            leaves = 1;
+        } else {
+            for (BswabeCompiledPolicy child : children) leaves += child.leaves;
+        }
+        this.leaves = leaves;
+    }
+
+    public int leafCount() {
+        return leaves;
+    }
+}
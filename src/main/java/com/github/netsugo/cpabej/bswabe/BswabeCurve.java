@@ -0,0 +1,94 @@
+package com.github.netsugo.cpabej.bswabe;
+
+public enum BswabeCurve {
+    /*
+     * Pairing parameter presets for Bswabe.setup, generated once with the
+     * jPBC curve generators. The scheme multiplies G_1 and G_2 elements
+     * together, so only symmetric pairings (types A, A1 and E) can be used.
+     *
+     * A_160 is the type A curve this library always used: 160-bit group
+     * order over a 512-bit field, 65-byte compressed points and 128-byte
+     * G_T elements. A_256 has a 256-bit group order over a 1536-bit field
+     * for a larger security margin, at several times the cost of every
+     * pairing and exponentiation. A1_512 is a type A1 curve whose order is
+     * the product of two 256-bit primes; its field is 522 bits, so points
+     * are slightly larger than A_160's (67 bytes compressed, 132-byte G_T
+     * elements), and the 512-bit order makes every exponentiation several
+     * times slower. E_160 has embedding degree 1, so G_T is a 1024-bit prime
+     * field instead of a quadratic extension: G_T elements stay at 128
+     * bytes while curve points double to 129 bytes compressed.
+     */
+    A_160("type a\n"
+            + "q 87807107996633125224377819847540498158068831994142082"
+            + "1102865339926647563088022295707862517942266222142315585"
+            + "8769582317459277713367317481324925129998224791\n"
+            + "h 12016012264891146079388821366740534204802954401251311"
+            + "822919615131047207289359704531102844802183906537786776\n"
+            + "r 730750818665451621361119245571504901405976559617\n"
+            + "exp2 159\n" + "exp1 107\n" + "sign1 1\n" + "sign0 1\n"),
+
+    A_256("type a\n"
+            + "q 1747092497940697484216639550320839622421862664263417493885"
+            + "027935944626205037386004384834559382734830822537993448302221"
+            + "312422455424971568415824167048133178515514666538072186377256"
+            + "273007597342345047683720392446869876310534842442112839221256"
+            + "236891202390371110346969940032269459075167283354821890506459"
+            + "254503018440740270680907598013715429734960165370523225963325"
+            + "935080313481206296223492493419964001865199191385923043328355"
+            + "72606818807029686236407015402055698359089523\n"
+            + "r 5789605152040444450234927993909981620366044478392925419011"
+            + "5347166480788619263\n"
+            + "h 3017636698981044464993484975977759841637375326682776414101"
+            + "514517891620087533002930847974676056257090314490371673057015"
+            + "783403103967665243715843950910163383854162592877241775893400"
+            + "947653029818188992707871953797613085629727966236059064560145"
+            + "644984795847312397029703656084886186236667008572126768380585"
+            + "313605810774735401213133558075685436155376689748375499242603"
+            + "812367704570395441326622348\n"
+            + "exp1 232\n"
+            + "exp2 255\n"
+            + "sign0 -1\n"
+            + "sign1 1\n"),
+
+    A1_512("type a1\n"
+            + "p 1159508461748578939380123128196100693238323002557428678040"
+            + "820931794106032008090487031300431631373202346909662528073025"
+            + "9095925029698763286999388036363205214371\n"
+            + "n 6543501477136449996501823522551358313986021459127701343345"
+            + "490585745519367991481303788377153675921006472402158736303757"
+            + "954810964841288536681370223681267051\n"
+            + "n0 908561955674862481989934351309599730111155941675667968603"
+            + "33827241033908617683\n"
+            + "n1 720204212411256200269486422410081296304309891791250320539"
+            + "63965944837771474697\n"
+            + "l 1772\n"),
+
+    E_160("type e\n"
+            + "q 3600774010247331798642908082534664885959786758070188305016"
+            + "824410296182402714254049228778388899153473262447811540912637"
+            + "633852394438004366096711891431440524652252441704288526197432"
+            + "335595781401614723048056930659059697838350723200938562748441"
+            + "818190902956394069290262248770098527967867576300423406070724"
+            + "2836264301\n"
+            + "r 730750818665451459101842416358717970580269694977\n"
+            + "h 6743063416946054687863301802376219621318045133605735339295"
+            + "977627263971887199247061721001617550344890868608253450803545"
+            + "282537246025788913942961856287804549616293337575649195897660"
+            + "6715449371729720203825323468686700\n"
+            + "exp1 59\n"
+            + "exp2 159\n"
+            + "sign0 1\n"
+            + "sign1 1\n"
+            + "a 0\n"
+            + "b 1\n");
+
+    /* the default of Bswabe.setup(pub, msk) */
+    public static final BswabeCurve DEFAULT = A_160;
+
+    /* parameters in the jPBC properties format, as stored in BswabePub.pairingDesc */
+    public final String params;
+
+    BswabeCurve(String params) {
+        this.params = params;
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.netsugo.cpabej.bswabe;
+
+import it.unisa.dia.gas.jpbc.Element;
+
+public class BswabeDecPlan {
+    /*
+     * Which leaves a private key uses to decrypt a ciphertext, worked out by
+     * Bswabe.plan. Leaves are numbered in the depth-first order of the policy
+     * tree, counting only leaves. The plan lives outside the ciphertext, so a
+     * BswabeCph is never written to while decrypting and can be shared
+     * between threads.
+     */
+
+    /* ordinal of each used leaf */
+    public final int[] leaves;
+    /* position in BswabePrv.comps of the component matching each leaf */
+    public final int[] comps;
+    /* Zr exponent of each leaf, the product of the Lagrange coefficients on its path */
+    public final Element[] exps;
+
+    BswabeDecPlan(int[] leaves, int[] comps, Element[] exps) {
+        this.leaves = leaves;
+        this.comps = comps;
+        this.exps = exps;
+    }
+
+    public int size() {
+        return leaves.length;
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.netsugo.cpabej.bswabe;
+
+public interface BswabeMetrics {
+    /*
+     * Receives one record per finished phase of Bswabe, SerializeUtils and
+     * Cpabe once installed with Bswabe.setMetrics. Records arrive on whichever
+     * thread finished the phase, possibly many at once, so implementations
+     * must be thread-safe and should be cheap. With no listener installed
+     * (the default) the only cost is a null check per operation.
+     *
+     * pairings counts Miller loops, so a product pairing over n pairs counts
+     * n. exponentiations counts powZn calls, fixed-base ones included. hashes
+     * counts attributes hashed into G_2, cache hits excluded. Phases that
+     * only measure time report zero counts. FILL_POLICY is a part of
+     * ENCRYPT; every other phase is disjoint from the rest.
+     */
+    enum Phase {
+        SETUP,
+        KEYGEN,
+        DELEGATE,
+        COMPILE,
+        ENCRYPT,
+        FILL_POLICY,
+        PLAN,
+        DECRYPT,
+        SERIALIZE,
+        UNSERIALIZE,
+        SYMMETRIC_ENCRYPT,
+        SYMMETRIC_DECRYPT
+    }
+
+    void record(Phase phase, long nanos, long pairings, long exponentiations, long hashes);
+}
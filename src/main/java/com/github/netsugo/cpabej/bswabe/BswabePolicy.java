@@ -2,8 +2,6 @@ package com.github.netsugo.cpabej.bswabe;
 
 import it.unisa.dia.gas.jpbc.Element;
 
-import java.util.ArrayList;
-
 public class BswabePolicy {
     /* serialized */
 
@@ -18,10 +16,4 @@ public class BswabePolicy {
 
     /* only used during encryption */
     public BswabePolynomial q;
-
-    /* only used during decription */
-    public boolean satisfiable;
-    public int min_leaves;
-    public int attri;
-    public ArrayList<Integer> satl = new ArrayList<>();
 }
@@ -3,6 +3,7 @@ package com.github.netsugo.cpabej.bswabe;
 import it.unisa.dia.gas.jpbc.Element;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public class BswabePrv {
     /*
@@ -10,4 +11,7 @@ public class BswabePrv {
      */
     public Element d; /* G_2 */
     public ArrayList<BswabePrvComp> comps; /* BswabePrvComp */
+
+    /* attribute -> position in comps, filled by Bswabe.index, not serialized */
+    public HashMap<String, Integer> index;
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package com.github.netsugo.cpabej.bswabe;
 
 import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
 import it.unisa.dia.gas.jpbc.Pairing;
 
 public class BswabePub{
@@ -14,4 +15,18 @@ public class BswabePub{
 	public Element f;				/* G_1 */
 	public Element gp;			/* G_2 */
 	public Element g_hat_alpha;	/* G_T */
+
+	/* pure Java pairing on the same parameters that decodes compressed points; p itself on JAVA, not serialized */
+	public Pairing codec;
+
+	/* fixed-base tables filled by Bswabe.preprocess, not serialized */
+	public ElementPowPreProcessing g_pp;
+	public ElementPowPreProcessing h_pp;
+	public ElementPowPreProcessing g_hat_alpha_pp;
+
+	/* attribute string -> hashed G_2 element, not serialized; null disables caching */
+	public LruCache<String, Element> hashCache;
+
+	/* key attributes and policy shape -> decryption plan, not serialized; null disables caching */
+	public LruCache<String, BswabeDecPlan> planCache;
 }
@@ -0,0 +1,18 @@
+package com.github.netsugo.cpabej.bswabe;
+
+public enum BswabeStackOrder {
+    /*
+     * Where a kofn gate in a postfix policy string takes its n children from.
+     * BOTTOM takes the n oldest nodes on the stack, as 0.1.0 did, so a gate
+     * after a nested gate reads the stack like a queue: "a b c d 1of2 1of2
+     * 2of2" is (a or b) and (c or d). It is the default, so policy strings
+     * written for 0.1.0 keep their meaning. TOP takes the n newest nodes,
+     * which is ordinary postfix notation: the same policy is "a b 1of2 c d
+     * 1of2 2of2".
+     *
+     * The two agree whenever every gate consumes the whole stack, which
+     * covers single-gate policies and policies like "a b 1of2 c 2of2".
+     */
+    BOTTOM,
+    TOP
+}
@@ -3,257 +3,741 @@ package com.github.netsugo.cpabej.bswabe;
 import it.unisa.dia.gas.jpbc.Element;
 import it.unisa.dia.gas.jpbc.Field;
 import it.unisa.dia.gas.jpbc.Pairing;
-import it.unisa.dia.gas.jpbc.PairingParameters;
-import it.unisa.dia.gas.plaf.jpbc.pairing.PairingFactory;
-import it.unisa.dia.gas.plaf.jpbc.pairing.parameters.PropertiesParameters;
+import it.unisa.dia.gas.plaf.jpbc.field.curve.CurveElement;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class SerializeUtils {
+    /*
+     * Two encodings are read. The legacy one prefixes every element and
+     * string with a 4-byte length and stores elements uncompressed. The
+     * compact one starts with COMPACT_MAGIC and a version byte, stores curve
+     * points compressed (roughly half the size, at the cost of one square
+     * root per point when reading; see elementLength for how this works on
+     * the PBC backend), uses varints for lengths and counts, and
+     * keeps attribute strings in a table so each distinct one is stored once.
+     * Every legacy blob starts with the high byte of a small length, which is
+     * always 0, so the first byte tells them apart.
+     *
+     * Every object has a sizeOf method and a serialize method that writes
+     * exactly that many bytes into a caller-provided ByteBuffer, heap or
+     * direct, at its position. The unserialize methods taking a ByteBuffer
+     * decode from its position and leave it just after the object. The
+     * byte[] methods are wrappers over these. Byte order of the caller's
+     * buffer does not matter.
+     */
+    public static final byte COMPACT_MAGIC = (byte) 0xCA;
+    public static final byte COMPACT_VERSION = 1;
+
+    /* deepest gate nesting accepted in a ciphertext header */
+    public static final int MAX_POLICY_DEPTH = 128;
+
+    /* stream helpers for the length-prefixed framing used by Common */
+
     private static void writeInt(OutputStream stream, int i) throws IOException {
-        byte[] data = ByteBuffer.allocate(4).putInt(i).array();
-        stream.write(data);
+        stream.write(i >>> 24);
+        stream.write(i >>> 16);
+        stream.write(i >>> 8);
+        stream.write(i);
     }
 
     private static int readInt(InputStream stream) throws IOException {
         byte[] lenInfo = new byte[4];
-        stream.read(lenInfo);
+        readFully(stream, lenInfo);
         return ByteBuffer.wrap(lenInfo).getInt();
     }
 
+    /* a single read may return less than asked for on anything but an in-memory stream */
+    private static void readFully(InputStream stream, byte[] data) throws IOException {
+        int off = 0;
+        while (off < data.length) {
+            int n = stream.read(data, off, data.length - off);
+            if (n < 0) throw new EOFException();
+            off += n;
+        }
+    }
+
     public static void writeBytes(OutputStream stream, byte[] data) throws IOException {
         writeInt(stream, data.length);
         stream.write(data);
     }
 
     public static byte[] readBytes(InputStream stream) throws IOException {
+        return readBytes(stream, Integer.MAX_VALUE);
+    }
+
+    /* rejects a length prefix above maxLength before allocating for it */
+    public static byte[] readBytes(InputStream stream, int maxLength) throws IOException {
         int len = readInt(stream);
+        if (len < 0 || len > maxLength) throw new IOException("Invalid length: " + len);
         byte[] data = new byte[len];
-        stream.read(data);
+        readFully(stream, data);
 
         return data;
     }
 
-    private static void serializeElement(OutputStream stream, Element e) throws IOException {
-        writeBytes(stream, e.toBytes());
+    /* lengths and counts: 4-byte big-endian in the legacy encoding, varints in the compact one */
+
+    private static int sizeOfLength(int i, boolean compact) {
+        if (!compact) return 4;
+        int n = 1;
+        while ((i & ~0x7F) != 0) {
+            i >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static void writeLength(ByteBuffer buf, int i, boolean compact) {
+        if (!compact) {
+            buf.putInt(i);
+            return;
+        }
+        while ((i & ~0x7F) != 0) {
+            buf.put((byte) ((i & 0x7F) | 0x80));
+            i >>>= 7;
+        }
+        buf.put((byte) i);
+    }
+
+    /* never negative, and never more than what is left in buf */
+    private static int readLength(ByteBuffer buf, boolean compact) throws IOException {
+        int value;
+        if (!compact) {
+            value = buf.getInt();
+        } else {
+            value = readVarint(buf);
+        }
+        if (value < 0 || value > buf.remaining()) throw new EOFException();
+        return value;
+    }
+
+    /* like readLength, for counts of sub-objects which are each at least one byte */
+    private static int readCount(ByteBuffer buf, boolean compact) throws IOException {
+        return readLength(buf, compact);
     }
 
-    private static Element unserializeElement(InputStream stream, Field field) throws IOException {
-        byte[] data = readBytes(stream);
+    private static int readVarint(ByteBuffer buf) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Invalid length");
+    }
+
+    /* elements */
+
+    /*
+     * Compressed points are jPBC CurveElement encodings whatever the backend:
+     * only CurveElements are written compressed, so a PBC-backed writer
+     * stores its points uncompressed even in the compact encoding, and a
+     * reader accepts either length. A compressed point read into a field
+     * whose elements are not CurveElements is decoded by points, the
+     * matching field of BswabePub.codec, and copied over uncompressed.
+     */
+    private static int elementLength(Element e, boolean compact) {
+        if (compact && e instanceof CurveElement) return ((CurveElement<?, ?>) e).getLengthInBytesCompressed();
+        return e.getLengthInBytes();
+    }
+
+    private static int sizeOfElement(Element e, boolean compact) {
+        int len = elementLength(e, compact);
+        return sizeOfLength(len, compact) + len;
+    }
+
+    private static void serializeElement(ByteBuffer buf, Element e, boolean compact) {
+        byte[] data = compact && e instanceof CurveElement ? ((CurveElement<?, ?>) e).toBytesCompressed() : e.toBytes();
+        writeLength(buf, data.length, compact);
+        buf.put(data);
+    }
+
+    /* codec fields for unserializeElement; null when pub has no codec */
+    private static Field<?> codecG1(BswabePub pub) {
+        return pub.codec == null ? null : pub.codec.getG1();
+    }
+
+    private static Field<?> codecG2(BswabePub pub) {
+        return pub.codec == null ? null : pub.codec.getG2();
+    }
+
+    /* for fields that are never compressed, and for skipping */
+    private static Element unserializeElement(ByteBuffer buf, Field<?> field, boolean compact) throws IOException {
+        return unserializeElement(buf, field, null, compact);
+    }
+
+    /*
+     * Heap buffers are decoded in place from the backing array; anything else
+     * is copied out first, because jPBC only reads from arrays. A null field
+     * skips the element and returns null.
+     */
+    private static Element unserializeElement(ByteBuffer buf, Field<?> field, Field<?> points, boolean compact) throws IOException {
+        int len = readLength(buf, compact);
+        if (field == null) {
+            /* header-only reads skip the element */
+            buf.position(buf.position() + len);
+            return null;
+        }
         Element e = field.newElement();
-        e.setFromBytes(data);
+        CurveElement<?, ?> point = null;
+        if (len != e.getLengthInBytes()) {
+            if (compact) {
+                Element decoder = e instanceof CurveElement || points == null ? e : points.newElement();
+                if (decoder instanceof CurveElement) point = (CurveElement<?, ?>) decoder;
+            }
+            if (point == null || len != point.getLengthInBytesCompressed()) throw new IOException("Invalid element");
+        }
+
+        byte[] data;
+        int off;
+        if (buf.hasArray()) {
+            data = buf.array();
+            off = buf.arrayOffset() + buf.position();
+            buf.position(buf.position() + len);
+        } else {
+            data = new byte[len];
+            off = 0;
+            buf.get(data);
+        }
+
+        if (point == null) {
+            e.setFromBytes(data, off);
+        } else {
+            point.setFromBytesCompressed(data, off);
+            if (point != e) e.setFromBytes(point.toBytes());
+        }
         return e;
     }
 
-    private static void serializeString(OutputStream stream, String s) throws IOException {
-        byte[] data = s.getBytes();
-        writeBytes(stream, data);
+    /* strings: platform charset in the legacy encoding, as it always was; UTF-8 in the compact one */
+
+    private static byte[] stringBytes(String s, boolean compact) {
+        return compact ? s.getBytes(StandardCharsets.UTF_8) : s.getBytes();
+    }
+
+    private static int sizeOfString(String s, boolean compact) {
+        int len = stringBytes(s, compact).length;
+        return sizeOfLength(len, compact) + len;
+    }
+
+    private static void serializeString(ByteBuffer buf, String s, boolean compact) {
+        byte[] data = stringBytes(s, compact);
+        writeLength(buf, data.length, compact);
+        buf.put(data);
+    }
+
+    private static String unserializeString(ByteBuffer buf, boolean compact) throws IOException {
+        byte[] data = new byte[readLength(buf, compact)];
+        buf.get(data);
+        return compact ? new String(data, StandardCharsets.UTF_8) : new String(data);
+    }
+
+    /* compact header and attribute string table */
+
+    private static int sizeOfHeader(boolean compact) {
+        return compact ? 2 : 0;
+    }
+
+    private static void writeHeader(ByteBuffer buf, boolean compact) {
+        if (!compact) return;
+        buf.put(COMPACT_MAGIC);
+        buf.put(COMPACT_VERSION);
     }
 
-    private static String unserializeString(InputStream stream) throws IOException {
-        byte[] data = readBytes(stream);
-        return new String(data);
+    /* true if buf is in the compact encoding; throws if it is, but in a version this code does not know */
+    private static boolean readHeader(ByteBuffer buf) throws IOException {
+        if (!buf.hasRemaining() || buf.get(buf.position()) != COMPACT_MAGIC) return false;
+        buf.get();
+        int version = buf.get();
+        if (version != COMPACT_VERSION) throw new IOException("Unsupported encoding version " + version);
+        return true;
+    }
+
+    private static int sizeOfStringTable(Map<String, Integer> table) {
+        int size = sizeOfLength(table.size(), true);
+        for (String s : table.keySet()) size += sizeOfString(s, true);
+        return size;
+    }
+
+    /* attribute strings in order of first use, written once up front */
+    private static void writeStringTable(ByteBuffer buf, Map<String, Integer> table) {
+        writeLength(buf, table.size(), true);
+        for (String s : table.keySet()) serializeString(buf, s, true);
+    }
+
+    private static String[] readStringTable(ByteBuffer buf) throws IOException {
+        String[] table = new String[readCount(buf, true)];
+        for (int i = 0; i < table.length; i++) table[i] = unserializeString(buf, true);
+        return table;
+    }
+
+    private static String readStringRef(ByteBuffer buf, String[] table) throws IOException {
+        int i = readVarint(buf);
+        if (i < 0 || i >= table.length) throw new IOException("Invalid string reference");
+        return table[i];
+    }
+
+    /*
+     * Run the body on a big-endian view of buf starting at its position, then
+     * move buf past what was consumed. Every unserialize method goes through
+     * here, so this is where UNSERIALIZE is timed.
+     */
+    private interface Body<T> {
+        T run(ByteBuffer view) throws IOException;
+    }
+
+    private static <T> T onView(ByteBuffer buf, Body<T> body) throws IOException {
+        Tally t = Tally.open();
+        ByteBuffer view = buf.slice().order(ByteOrder.BIG_ENDIAN);
+        T result = body.run(view);
+        buf.position(buf.position() + view.position());
+        Tally.close(t, BswabeMetrics.Phase.UNSERIALIZE);
+        return result;
+    }
+
+    /* public key */
+
+    public static int sizeOfBswabePub(BswabePub pub, boolean compact) {
+        return sizeOfHeader(compact)
+                + sizeOfString(pub.pairingDesc, compact)
+                + sizeOfElement(pub.g, compact)
+                + sizeOfElement(pub.h, compact)
+                + sizeOfElement(pub.gp, compact)
+                + sizeOfElement(pub.g_hat_alpha, compact);
+    }
+
+    public static void serializeBswabePub(BswabePub pub, boolean compact, ByteBuffer buf) {
+        Tally t = Tally.open();
+        ByteBuffer view = buf.slice().order(ByteOrder.BIG_ENDIAN);
+        writeHeader(view, compact);
+        serializeString(view, pub.pairingDesc, compact);
+        serializeElement(view, pub.g, compact);
+        serializeElement(view, pub.h, compact);
+        serializeElement(view, pub.gp, compact);
+        serializeElement(view, pub.g_hat_alpha, compact);
+        buf.position(buf.position() + view.position());
+        Tally.close(t, BswabeMetrics.Phase.SERIALIZE);
     }
 
     public static byte[] serializeBswabePub(BswabePub pub) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        return serializeBswabePub(pub, false);
+    }
 
-        try {
-            serializeString(stream, pub.pairingDesc);
-            serializeElement(stream, pub.g);
-            serializeElement(stream, pub.h);
-            serializeElement(stream, pub.gp);
-            serializeElement(stream, pub.g_hat_alpha);
-
-            return stream.toByteArray();
-        } catch (IOException e) {
-            return null;
-        }
+    public static byte[] serializeBswabePub(BswabePub pub, boolean compact) {
+        ByteBuffer buf = ByteBuffer.allocate(sizeOfBswabePub(pub, compact));
+        serializeBswabePub(pub, compact, buf);
+        return buf.array();
     }
 
+    /* reads either encoding, on the active backend */
     public static BswabePub unserializeBswabePub(byte[] b) {
-        ByteArrayInputStream stream = new ByteArrayInputStream(b);
+        return unserializeBswabePub(ByteBuffer.wrap(b));
+    }
+
+    public static BswabePub unserializeBswabePub(ByteBuffer buf) {
+        return unserializeBswabePub(buf, BswabeBackend.active());
+    }
+
+    /*
+     * Same, with the pairing on the given backend. Throws
+     * IllegalStateException if that backend is not available.
+     */
+    public static BswabePub unserializeBswabePub(byte[] b, BswabeBackend backend) {
+        return unserializeBswabePub(ByteBuffer.wrap(b), backend);
+    }
 
+    public static BswabePub unserializeBswabePub(ByteBuffer buf, BswabeBackend backend) {
         try {
-            String paringDesc = unserializeString(stream);
-
-            PairingParameters params = new PropertiesParameters()
-                    .load(new ByteArrayInputStream(paringDesc.getBytes()));
-            Pairing pairing = PairingFactory.getPairing(params);
-
-            Element g = unserializeElement(stream, pairing.getG1());
-            Element h = unserializeElement(stream, pairing.getG1());
-            Element gp = unserializeElement(stream, pairing.getG2());
-            Element g_hat_alpha = unserializeElement(stream, pairing.getGT());
-
-            BswabePub pub = new BswabePub();
-            pub.pairingDesc = paringDesc;
-            pub.p = pairing;
-            pub.g = g;
-            pub.h = h;
-            pub.gp = gp;
-            pub.g_hat_alpha = g_hat_alpha;
-
-            return pub;
-        } catch (IOException e) {
+            return onView(buf, view -> {
+                boolean compact = readHeader(view);
+                String paringDesc = unserializeString(view, compact);
+
+                Pairing pairing = Bswabe.createPairing(paringDesc, backend);
+                Pairing codec = Bswabe.createCodec(paringDesc, pairing, backend);
+
+                Element g = unserializeElement(view, pairing.getG1(), codec.getG1(), compact);
+                Element h = unserializeElement(view, pairing.getG1(), codec.getG1(), compact);
+                Element gp = unserializeElement(view, pairing.getG2(), codec.getG2(), compact);
+                Element g_hat_alpha = unserializeElement(view, pairing.getGT(), compact);
+
+                BswabePub pub = new BswabePub();
+                pub.pairingDesc = paringDesc;
+                pub.p = pairing;
+                pub.codec = codec;
+                pub.g = g;
+                pub.h = h;
+                pub.gp = gp;
+                pub.g_hat_alpha = g_hat_alpha;
+
+                return pub;
+            });
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
             return null;
         }
     }
 
+    /* master key */
+
+    public static int sizeOfBswabeMsk(BswabeMsk msk, boolean compact) {
+        return sizeOfHeader(compact)
+                + sizeOfElement(msk.beta, compact)
+                + sizeOfElement(msk.g_alpha, compact);
+    }
+
+    public static void serializeBswabeMsk(BswabeMsk msk, boolean compact, ByteBuffer buf) {
+        Tally t = Tally.open();
+        ByteBuffer view = buf.slice().order(ByteOrder.BIG_ENDIAN);
+        writeHeader(view, compact);
+        serializeElement(view, msk.beta, compact);
+        serializeElement(view, msk.g_alpha, compact);
+        buf.position(buf.position() + view.position());
+        Tally.close(t, BswabeMetrics.Phase.SERIALIZE);
+    }
+
     /* Method has been test okay */
     public static byte[] serializeBswabeMsk(BswabeMsk msk) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-
-        try {
-            serializeElement(stream, msk.beta);
-            serializeElement(stream, msk.g_alpha);
+        return serializeBswabeMsk(msk, false);
+    }
 
-            return stream.toByteArray();
-        } catch (IOException e) {
-            return null;
-        }
+    public static byte[] serializeBswabeMsk(BswabeMsk msk, boolean compact) {
+        ByteBuffer buf = ByteBuffer.allocate(sizeOfBswabeMsk(msk, compact));
+        serializeBswabeMsk(msk, compact, buf);
+        return buf.array();
     }
 
     /* Method has been test okay */
     public static BswabeMsk unserializeBswabeMsk(BswabePub pub, byte[] b) {
-        ByteArrayInputStream stream = new ByteArrayInputStream(b);
+        return unserializeBswabeMsk(pub, ByteBuffer.wrap(b));
+    }
 
+    public static BswabeMsk unserializeBswabeMsk(BswabePub pub, ByteBuffer buf) {
         try {
-            Pairing pairing = pub.p;
-            Element beta = unserializeElement(stream, pairing.getZr());
-            Element g_alpha = unserializeElement(stream, pub.p.getG2());
-
-            BswabeMsk msk = new BswabeMsk();
-            msk.beta = beta;
-            msk.g_alpha = g_alpha;
-            return msk;
-        } catch (IOException e) {
+            return onView(buf, view -> {
+                boolean compact = readHeader(view);
+                Pairing pairing = pub.p;
+                Element beta = unserializeElement(view, pairing.getZr(), compact);
+                Element g_alpha = unserializeElement(view, pub.p.getG2(), codecG2(pub), compact);
+
+                BswabeMsk msk = new BswabeMsk();
+                msk.beta = beta;
+                msk.g_alpha = g_alpha;
+                return msk;
+            });
+        } catch (IOException | BufferUnderflowException e) {
             return null;
         }
     }
 
-    /* Method has been test okay */
-    public static byte[] serializeBswabePrv(BswabePrv prv) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    /* private key */
 
-        try {
-            serializeElement(stream, prv.d);
-            writeInt(stream, prv.comps.size());
+    private static Map<String, Integer> attributeTable(BswabePrv prv) {
+        Map<String, Integer> table = new LinkedHashMap<>();
+        for (BswabePrvComp comp : prv.comps) table.putIfAbsent(comp.attr, table.size());
+        return table;
+    }
 
-            for (BswabePrvComp comp : prv.comps) {
-                serializeString(stream, comp.attr);
-                serializeElement(stream, comp.d);
-                serializeElement(stream, comp.dp);
-            }
+    public static int sizeOfBswabePrv(BswabePrv prv, boolean compact) {
+        Map<String, Integer> table = compact ? attributeTable(prv) : null;
+        int size = sizeOfHeader(compact)
+                + (compact ? sizeOfStringTable(table) : 0)
+                + sizeOfElement(prv.d, compact)
+                + sizeOfLength(prv.comps.size(), compact);
+
+        for (BswabePrvComp comp : prv.comps) {
+            size += compact ? sizeOfLength(table.get(comp.attr), true) : sizeOfString(comp.attr, false);
+            size += sizeOfElement(comp.d, compact);
+            size += sizeOfElement(comp.dp, compact);
+        }
+        return size;
+    }
 
-            return stream.toByteArray();
-        } catch (IOException e) {
-            return null;
+    public static void serializeBswabePrv(BswabePrv prv, boolean compact, ByteBuffer buf) {
+        Tally t = Tally.open();
+        ByteBuffer view = buf.slice().order(ByteOrder.BIG_ENDIAN);
+        Map<String, Integer> table = compact ? attributeTable(prv) : null;
+
+        writeHeader(view, compact);
+        if (compact) writeStringTable(view, table);
+        serializeElement(view, prv.d, compact);
+        writeLength(view, prv.comps.size(), compact);
+
+        for (BswabePrvComp comp : prv.comps) {
+            if (compact) {
+                writeLength(view, table.get(comp.attr), true);
+            } else {
+                serializeString(view, comp.attr, false);
+            }
+            serializeElement(view, comp.d, compact);
+            serializeElement(view, comp.dp, compact);
         }
+        buf.position(buf.position() + view.position());
+        Tally.close(t, BswabeMetrics.Phase.SERIALIZE);
+    }
+
+    /* Method has been test okay */
+    public static byte[] serializeBswabePrv(BswabePrv prv) {
+        return serializeBswabePrv(prv, false);
+    }
+
+    public static byte[] serializeBswabePrv(BswabePrv prv, boolean compact) {
+        ByteBuffer buf = ByteBuffer.allocate(sizeOfBswabePrv(prv, compact));
+        serializeBswabePrv(prv, compact, buf);
+        return buf.array();
     }
 
     /* Method has been test okay */
     public static BswabePrv unserializeBswabePrv(BswabePub pub, byte[] b) {
-        ByteArrayInputStream stream = new ByteArrayInputStream(b);
+        return unserializeBswabePrv(pub, ByteBuffer.wrap(b));
+    }
 
+    public static BswabePrv unserializeBswabePrv(BswabePub pub, ByteBuffer buf) {
         try {
-            Pairing pairing = pub.p;
-            Element prv_d = unserializeElement(stream, pairing.getG2());
-            int len = readInt(stream);
-            ArrayList<BswabePrvComp> components = new ArrayList<>();
-
-            for (int i = 0; i < len; i++) {
-                String attr = unserializeString(stream);
-                Element d = unserializeElement(stream, pairing.getG2());
-                Element dp = unserializeElement(stream, pairing.getG2());
-
-                BswabePrvComp c = new BswabePrvComp();
-                c.attr = attr;
-                c.d = d;
-                c.dp = dp;
-                components.add(c);
-            }
+            return onView(buf, view -> {
+                boolean compact = readHeader(view);
+                String[] table = compact ? readStringTable(view) : null;
+                Pairing pairing = pub.p;
+                Element prv_d = unserializeElement(view, pairing.getG2(), codecG2(pub), compact);
+                int len = readCount(view, compact);
+                ArrayList<BswabePrvComp> components = new ArrayList<>(len);
+
+                for (int i = 0; i < len; i++) {
+                    String attr = compact ? readStringRef(view, table) : unserializeString(view, false);
+                    Element d = unserializeElement(view, pairing.getG2(), codecG2(pub), compact);
+                    Element dp = unserializeElement(view, pairing.getG2(), codecG2(pub), compact);
+
+                    BswabePrvComp c = new BswabePrvComp();
+                    c.attr = attr;
+                    c.d = d;
+                    c.dp = dp;
+                    components.add(c);
+                }
+
+                BswabePrv prv = new BswabePrv();
+                prv.d = prv_d;
+                prv.comps = components;
+                Bswabe.index(prv);
+                return prv;
+            });
+        } catch (IOException | BufferUnderflowException e) {
+            return null;
+        }
+    }
 
-            BswabePrv prv = new BswabePrv();
-            prv.d = prv_d;
-            prv.comps = components;
-            return prv;
-        } catch (IOException e) {
+    /*
+     * The attributes of a serialized private key, in component order, read
+     * without decoding any element, so no public key is needed. Returns null
+     * if the key is malformed.
+     */
+    public static List<String> unserializeBswabePrvAttributes(byte[] b) {
+        return unserializeBswabePrvAttributes(ByteBuffer.wrap(b));
+    }
+
+    public static List<String> unserializeBswabePrvAttributes(ByteBuffer buf) {
+        try {
+            return onView(buf, view -> {
+                boolean compact = readHeader(view);
+                String[] table = compact ? readStringTable(view) : null;
+                unserializeElement(view, null, compact);
+                int len = readCount(view, compact);
+                ArrayList<String> attrs = new ArrayList<>(len);
+
+                for (int i = 0; i < len; i++) {
+                    attrs.add(compact ? readStringRef(view, table) : unserializeString(view, false));
+                    unserializeElement(view, null, compact);
+                    unserializeElement(view, null, compact);
+                }
+                return attrs;
+            });
+        } catch (IOException | BufferUnderflowException e) {
             return null;
         }
     }
 
+    /* policy; n = 0 marks a leaf */
+
+    private static void collectAttributes(Map<String, Integer> table, BswabePolicy policy) {
+        if (policy.children == null || policy.children.length == 0) {
+            table.putIfAbsent(policy.attr, table.size());
+        } else {
+            for (BswabePolicy p : policy.children) collectAttributes(table, p);
+        }
+    }
+
+    /* table is null in the legacy encoding, where leaves carry their attribute inline */
+    private static int sizeOfPolicy(BswabePolicy policy, Map<String, Integer> table) {
+        boolean compact = table != null;
+        int size = sizeOfLength(policy.k, compact);
+
+        BswabePolicy[] policies = policy.children;
+        if (policies == null || policies.length == 0) {
+            size += sizeOfLength(0, compact);
+            size += compact ? sizeOfLength(table.get(policy.attr), true) : sizeOfString(policy.attr, false);
+            size += sizeOfElement(policy.c, compact);
+            size += sizeOfElement(policy.cp, compact);
+        } else {
+            size += sizeOfLength(policies.length, compact);
+            for (BswabePolicy p : policies) {
+                size += sizeOfPolicy(p, table);
+            }
+        }
+        return size;
+    }
 
-    private static void serializePolicy(OutputStream stream, BswabePolicy policy) throws IOException {
-        writeInt(stream, policy.k);
+    private static void serializePolicy(ByteBuffer buf, BswabePolicy policy, Map<String, Integer> table) {
+        boolean compact = table != null;
+        writeLength(buf, policy.k, compact);
 
         BswabePolicy[] policies = policy.children;
         if (policies == null || policies.length == 0) {
-            writeInt(stream, 0);
-            serializeString(stream, policy.attr);
-            serializeElement(stream, policy.c);
-            serializeElement(stream, policy.cp);
+            writeLength(buf, 0, compact);
+            if (compact) {
+                writeLength(buf, table.get(policy.attr), true);
+            } else {
+                serializeString(buf, policy.attr, false);
+            }
+            serializeElement(buf, policy.c, compact);
+            serializeElement(buf, policy.cp, compact);
         } else {
-            writeInt(stream, policies.length);
+            writeLength(buf, policies.length, compact);
             for (BswabePolicy p : policies) {
-                serializePolicy(stream, p);
+                serializePolicy(buf, p, table);
             }
         }
     }
 
-    private static BswabePolicy unserializePolicy(InputStream stream, BswabePub pub) throws IOException {
+    private static BswabePolicy unserializePolicy(ByteBuffer buf, BswabePub pub, String[] table) throws IOException {
+        return unserializePolicy(buf, pub, table, 0);
+    }
+
+    /*
+     * The header is untrusted: a gate must be k of n with 1 <= k <= n and a
+     * leaf must have k = 1, or satisfies and decrypt would disagree about
+     * it, and nesting stops at MAX_POLICY_DEPTH so a crafted header cannot
+     * overflow the stack here or in the recursive walks over the tree.
+     */
+    private static BswabePolicy unserializePolicy(ByteBuffer buf, BswabePub pub, String[] table, int depth) throws IOException {
+        if (depth > MAX_POLICY_DEPTH) throw new IOException("Policy nested too deeply");
+        boolean compact = table != null;
         BswabePolicy p = new BswabePolicy();
-        p.k = readInt(stream);
+        p.k = compact ? readVarint(buf) : buf.getInt();
 
         /* children */
-        int n = readInt(stream);
+        int n = readCount(buf, compact);
+        if (n > 0 ? p.k < 1 || p.k > n : p.k != 1) throw new IOException("Invalid threshold " + p.k + " of " + n);
         if (n > 0) {
             BswabePolicy[] array = new BswabePolicy[n];
             for (int i = 0; i < n; i++) {
-                array[i] = unserializePolicy(stream, pub);
+                array[i] = unserializePolicy(buf, pub, table, depth + 1);
             }
             p.children = array;
         } else {
-            Pairing paring = pub.p;
+            /* without a public key, only the structure is read */
+            Field<?> g1 = pub == null ? null : pub.p.getG1();
+            Field<?> points = pub == null ? null : codecG1(pub);
             p.children = null;
-            p.attr = unserializeString(stream);
-            p.c = unserializeElement(stream, paring.getG1());
-            p.cp = unserializeElement(stream, paring.getG1());
+            p.attr = compact ? readStringRef(buf, table) : unserializeString(buf, false);
+            p.c = unserializeElement(buf, g1, points, compact);
+            p.cp = unserializeElement(buf, g1, points, compact);
         }
 
         return p;
     }
 
+    /* ciphertext */
+
+    private static Map<String, Integer> attributeTable(BswabeCph cph) {
+        Map<String, Integer> table = new LinkedHashMap<>();
+        collectAttributes(table, cph.p);
+        return table;
+    }
+
+    public static int sizeOfBswabeCph(BswabeCph cph, boolean compact) {
+        Map<String, Integer> table = compact ? attributeTable(cph) : null;
+        return sizeOfHeader(compact)
+                + (compact ? sizeOfStringTable(table) : 0)
+                + sizeOfElement(cph.cs, compact)
+                + sizeOfElement(cph.c, compact)
+                + sizeOfPolicy(cph.p, table);
+    }
+
+    public static void serializeBswabeCph(BswabeCph cph, boolean compact, ByteBuffer buf) {
+        Tally t = Tally.open();
+        ByteBuffer view = buf.slice().order(ByteOrder.BIG_ENDIAN);
+        Map<String, Integer> table = compact ? attributeTable(cph) : null;
+
+        writeHeader(view, compact);
+        if (compact) writeStringTable(view, table);
+        serializeElement(view, cph.cs, compact);
+        serializeElement(view, cph.c, compact);
+        serializePolicy(view, cph.p, table);
+        buf.position(buf.position() + view.position());
+        Tally.close(t, BswabeMetrics.Phase.SERIALIZE);
+    }
+
     public static byte[] serializeBswabeCph(BswabeCph cph) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        return serializeBswabeCph(cph, false);
+    }
 
+    public static byte[] serializeBswabeCph(BswabeCph cph, boolean compact) {
+        ByteBuffer buf = ByteBuffer.allocate(sizeOfBswabeCph(cph, compact));
+        serializeBswabeCph(cph, compact, buf);
+        return buf.array();
+    }
+
+    public static BswabeCph unserializeBswabeCph(BswabePub pub, byte[] cphBuf) {
+        return unserializeBswabeCph(pub, ByteBuffer.wrap(cphBuf));
+    }
+
+    public static BswabeCph unserializeBswabeCph(BswabePub pub, ByteBuffer buf) {
         try {
-            serializeElement(stream, cph.cs);
-            serializeElement(stream, cph.c);
-            serializePolicy(stream, cph.p);
-            return stream.toByteArray();
-        } catch (IOException e) {
+            return onView(buf, view -> {
+                boolean compact = readHeader(view);
+                String[] table = compact ? readStringTable(view) : null;
+                Pairing pairing = pub.p;
+                Element cs = unserializeElement(view, pairing.getGT(), compact);
+                Element c = unserializeElement(view, pairing.getG1(), codecG1(pub), compact);
+                BswabePolicy policy = unserializePolicy(view, pub, table);
+
+                BswabeCph cph = new BswabeCph();
+                cph.cs = cs;
+                cph.c = c;
+                cph.p = policy;
+                return cph;
+            });
+        } catch (IOException | BufferUnderflowException e) {
             return null;
         }
     }
 
-    public static BswabeCph unserializeBswabeCph(BswabePub pub, byte[] cphBuf) {
-        ByteArrayInputStream stream = new ByteArrayInputStream(cphBuf);
+    /*
+     * Only the policy tree of a serialized ciphertext, in either encoding:
+     * gates and leaf attributes, with c and cp left null. Element bytes are
+     * skipped instead of decoded, so no public key is needed and the cost is
+     * a walk over the header. Returns null if the header is malformed.
+     */
+    public static BswabePolicy unserializeBswabePolicy(byte[] cphBuf) {
+        return unserializeBswabePolicy(ByteBuffer.wrap(cphBuf));
+    }
 
+    public static BswabePolicy unserializeBswabePolicy(ByteBuffer buf) {
         try {
-            Pairing pairing = pub.p;
-            Element cs = unserializeElement(stream, pairing.getGT());
-            Element c = unserializeElement(stream, pairing.getG1());
-            BswabePolicy policy = unserializePolicy(stream, pub);
-
-            BswabeCph cph = new BswabeCph();
-            cph.cs = cs;
-            cph.c = c;
-            cph.p = policy;
-            return cph;
-        } catch (IOException e) {
+            return onView(buf, view -> {
+                boolean compact = readHeader(view);
+                String[] table = compact ? readStringTable(view) : null;
+                unserializeElement(view, null, compact);
+                unserializeElement(view, null, compact);
+                return unserializePolicy(view, null, table);
+            });
+        } catch (IOException | BufferUnderflowException e) {
             return null;
         }
     }
@@ -0,0 +1,45 @@
+package com.github.netsugo.cpabej.bswabe;
+
+import java.util.concurrent.atomic.LongAdder;
+
+final class Tally {
+    /*
+     * Start time and event counts of one operation, reported to the listener
+     * by close. Shared by the parallel tasks of the operation. open returns
+     * null while no listener is installed, and every method accepts null, so
+     * call sites need no checks of their own.
+     */
+    private final BswabeMetrics metrics;
+    private final long start;
+    private final LongAdder pairings = new LongAdder();
+    private final LongAdder exponentiations = new LongAdder();
+    private final LongAdder hashes = new LongAdder();
+
+    private Tally(BswabeMetrics metrics) {
+        this.metrics = metrics;
+        this.start = System.nanoTime();
+    }
+
+    static Tally open() {
+        BswabeMetrics metrics = Bswabe.metrics();
+        return metrics == null ? null : new Tally(metrics);
+    }
+
+    static void pairings(Tally t, int n) {
+        if (t != null) t.pairings.add(n);
+    }
+
+    static void exponentiations(Tally t, int n) {
+        if (t != null) t.exponentiations.add(n);
+    }
+
+    static void hashes(Tally t, int n) {
+        if (t != null) t.hashes.add(n);
+    }
+
+    static void close(Tally t, BswabeMetrics.Phase phase) {
+        if (t == null) return;
+        t.metrics.record(phase, System.nanoTime() - t.start,
+                t.pairings.sum(), t.exponentiations.sum(), t.hashes.sum());
+    }
+}
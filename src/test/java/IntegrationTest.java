@@ -1,9 +1,76 @@
+import com.github.netsugo.cpabej.AESCoder;
+import com.github.netsugo.cpabej.Common;
 import com.github.netsugo.cpabej.Cpabe;
+import com.github.netsugo.cpabej.CpabeKeyCache;
+import com.github.netsugo.cpabej.CpabeMasterKey;
+import com.github.netsugo.cpabej.CpabePolicy;
+import com.github.netsugo.cpabej.CpabePrivateKey;
+import com.github.netsugo.cpabej.CpabePublicKey;
+import com.github.netsugo.cpabej.CpabeSession;
 import com.github.netsugo.cpabej.DecryptException;
+import com.github.netsugo.cpabej.EncryptException;
+import com.github.netsugo.cpabej.bswabe.Bswabe;
+import com.github.netsugo.cpabej.bswabe.BswabeBackend;
+import com.github.netsugo.cpabej.bswabe.BswabeCph;
+import com.github.netsugo.cpabej.bswabe.BswabeCphKey;
+import com.github.netsugo.cpabej.bswabe.BswabeCurve;
+import com.github.netsugo.cpabej.bswabe.BswabeDecPlan;
+import com.github.netsugo.cpabej.bswabe.BswabeMetrics;
+import com.github.netsugo.cpabej.bswabe.BswabeMsk;
+import com.github.netsugo.cpabej.bswabe.BswabePrv;
+import com.github.netsugo.cpabej.bswabe.BswabePub;
+import com.github.netsugo.cpabej.bswabe.BswabeStackOrder;
+import com.github.netsugo.cpabej.bswabe.SerializeUtils;
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.plaf.jpbc.field.curve.CurveElement;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
 public class IntegrationTest {
+    /* a fresh key pair, loaded into handles */
+    private static final class Keys {
+        final CpabePublicKey pubkey;
+        final CpabeMasterKey master;
+
+        Keys() {
+            this(BswabeCurve.DEFAULT);
+        }
+
+        Keys(BswabeCurve curve) {
+            byte[][] byteArrays = Cpabe.setup(curve);
+            pubkey = CpabePublicKey.load(byteArrays[Cpabe.SETUP_PUBLIC]);
+            master = CpabeMasterKey.load(pubkey, byteArrays[Cpabe.SETUP_MASTER]);
+        }
+
+        CpabePrivateKey secret(String attributes) throws Exception {
+            return CpabePrivateKey.load(pubkey, Cpabe.keygen(master, attributes));
+        }
+    }
+
     @Test
     public void singlePolicy() throws Exception {
         byte[][] byteArrays = Cpabe.setup();
@@ -46,4 +113,770 @@ public class IntegrationTest {
         Assertions.assertArrayEquals(plain, Cpabe.decrypt(pubkey, secretBob, encrypted));
         Assertions.assertThrows(DecryptException.class, () -> Cpabe.decrypt(pubkey, secretDavid, encrypted));
     }
+
+    @Test
+    public void loadedKeys() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey pubkey = keys.pubkey;
+
+        String policy = "alice bob 2of2";
+        byte[] plain = "hello".getBytes();
+
+        CpabePrivateKey secretBoth = keys.secret("alice bob");
+        CpabePrivateKey secretAlice = keys.secret("alice");
+
+        byte[] encrypted = Cpabe.encrypt(pubkey, policy, plain);
+
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(secretBoth, encrypted));
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(pubkey.toBytes(), secretBoth.toBytes(), encrypted));
+        Assertions.assertThrows(DecryptException.class, () -> Cpabe.decrypt(secretAlice, encrypted));
+    }
+
+    @Test
+    public void streaming() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey pubkey = keys.pubkey;
+        CpabePrivateKey secretAlice = keys.secret("alice");
+
+        String policy = "alice bob 1of2";
+        byte[] plain = new byte[200 * 1024 + 7];
+        new Random(1).nextBytes(plain);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        Cpabe.encrypt(pubkey, policy, new ByteArrayInputStream(plain), encrypted);
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        Cpabe.decrypt(secretAlice, new ByteArrayInputStream(encrypted.toByteArray()), decrypted);
+
+        Assertions.assertArrayEquals(plain, decrypted.toByteArray());
+    }
+
+    @Test
+    public void oversizedHeader() throws Exception {
+        Keys keys = new Keys();
+        CpabePrivateKey secretAlice = keys.secret("alice");
+
+        /* a format byte followed by a header length far above the cap */
+        ByteBuffer forged = ByteBuffer.allocate(9).putInt(1).put((byte) Common.FORMAT_AES_GCM).putInt(Integer.MAX_VALUE);
+        Assertions.assertThrows(IOException.class,
+                () -> Cpabe.decrypt(secretAlice, new ByteArrayInputStream(forged.array()), new ByteArrayOutputStream()));
+
+        forged.putInt(5, -1);
+        Assertions.assertThrows(IOException.class,
+                () -> Cpabe.decrypt(secretAlice, new ByteArrayInputStream(forged.array()), new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void unsupportedFormat() throws Exception {
+        Keys keys = new Keys();
+        CpabePrivateKey secretAlice = keys.secret("alice");
+
+        ByteArrayOutputStream forged = new ByteArrayOutputStream();
+        Common.writeCpabeHeader(forged, new byte[]{(byte) 0x7F}, new byte[0]);
+        Assertions.assertThrows(DecryptException.class,
+                () -> Cpabe.decrypt(secretAlice, new ByteArrayInputStream(forged.toByteArray()), new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void legacyPayload() throws Exception {
+        byte[][] byteArrays = Cpabe.setup();
+        byte[] pubkey = byteArrays[Cpabe.SETUP_PUBLIC];
+        byte[] master = byteArrays[Cpabe.SETUP_MASTER];
+
+        String policy = "alice";
+        byte[] plain = "hello".getBytes();
+        byte[] secretAlice = Cpabe.keygen(pubkey, master, "alice");
+
+        /* the layout written before payload formats were versioned */
+        BswabeCphKey keyCph = Bswabe.encrypt(SerializeUtils.unserializeBswabePub(pubkey), policy);
+        byte[] cphBuf = SerializeUtils.serializeBswabeCph(keyCph.cph);
+        byte[] aesBuf = AESCoder.encrypt(keyCph.key.toBytes(), plain);
+        byte[] encrypted = Common.packCpabe(cphBuf, aesBuf);
+
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(pubkey, secretAlice, encrypted));
+    }
+
+    @Test
+    public void compactEncoding() throws Exception {
+        BswabePub pub = new BswabePub();
+        BswabeMsk msk = new BswabeMsk();
+        Bswabe.setup(pub, msk);
+        BswabePrv prv = Bswabe.keygen(pub, msk, new String[]{"alice", "bob"});
+        BswabeCph cph = Bswabe.encrypt(pub, "alice bob carol 2of3").cph;
+
+        byte[] cphLegacy = SerializeUtils.serializeBswabeCph(cph);
+        byte[] cphCompact = SerializeUtils.serializeBswabeCph(cph, true);
+        Assertions.assertTrue(cphCompact.length < cphLegacy.length);
+
+        /* both encodings read back, through the same entry points */
+        for (boolean compact : new boolean[]{false, true}) {
+            BswabePub pubRead = SerializeUtils.unserializeBswabePub(SerializeUtils.serializeBswabePub(pub, compact));
+            BswabeMsk mskRead = SerializeUtils.unserializeBswabeMsk(pubRead, SerializeUtils.serializeBswabeMsk(msk, compact));
+            BswabePrv prvRead = SerializeUtils.unserializeBswabePrv(pubRead, SerializeUtils.serializeBswabePrv(prv, compact));
+            BswabeCph cphRead = SerializeUtils.unserializeBswabeCph(pubRead, compact ? cphCompact : cphLegacy);
+
+            Assertions.assertEquals(msk.beta, mskRead.beta);
+            Assertions.assertEquals(Bswabe.decrypt(pub, prv, cph), Bswabe.decrypt(pubRead, prvRead, cphRead));
+        }
+    }
+
+    @Test
+    public void compactHeaders() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey compact = keys.pubkey.withCompactHeaders(true);
+        CpabePrivateKey secret = keys.secret("a b");
+
+        String policy = "a b c 2of3";
+        byte[] plain = "hello".getBytes();
+        byte[] legacyEncrypted = Cpabe.encrypt(keys.pubkey, policy, plain);
+        byte[] compactEncrypted = Cpabe.encrypt(compact, policy, plain);
+
+        Assertions.assertTrue(compactEncrypted.length < legacyEncrypted.length);
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(secret, legacyEncrypted));
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(secret, compactEncrypted));
+    }
+
+    @Test
+    public void bufferSerialization() throws Exception {
+        BswabePub pub = new BswabePub();
+        BswabeMsk msk = new BswabeMsk();
+        Bswabe.setup(pub, msk);
+        BswabePrv prv = Bswabe.keygen(pub, msk, new String[]{"alice"});
+        BswabeCph cph = Bswabe.encrypt(pub, "alice bob 1of2").cph;
+
+        for (boolean compact : new boolean[]{false, true}) {
+            /* written after a 3 byte prefix into a direct buffer, read back from the same offset */
+            int size = SerializeUtils.sizeOfBswabeCph(cph, compact);
+            ByteBuffer buf = ByteBuffer.allocateDirect(size + 3).order(ByteOrder.LITTLE_ENDIAN);
+            buf.position(3);
+            SerializeUtils.serializeBswabeCph(cph, compact, buf);
+            Assertions.assertEquals(size + 3, buf.position());
+
+            buf.position(3);
+            BswabeCph cphRead = SerializeUtils.unserializeBswabeCph(pub, buf);
+            Assertions.assertEquals(size + 3, buf.position());
+            Assertions.assertArrayEquals(SerializeUtils.serializeBswabeCph(cph, compact), SerializeUtils.serializeBswabeCph(cphRead, compact));
+            Assertions.assertEquals(Bswabe.decrypt(pub, prv, cph), Bswabe.decrypt(pub, prv, cphRead));
+        }
+    }
+
+    @Test
+    public void files() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey pubkey = keys.pubkey;
+        CpabePrivateKey secretAlice = keys.secret("alice");
+
+        String policy = "alice";
+        byte[] plain = new byte[200 * 1024 + 7];
+        new Random(1).nextBytes(plain);
+
+        Path dir = Files.createTempDirectory("cpabej");
+        Path plainFile = dir.resolve("plain");
+        Path encryptedFile = dir.resolve("encrypted");
+        Path decryptedFile = dir.resolve("decrypted");
+        try {
+            Files.write(plainFile, plain);
+            Cpabe.encrypt(pubkey, policy, plainFile, encryptedFile);
+            Assertions.assertArrayEquals(plain, Cpabe.decrypt(secretAlice, Files.readAllBytes(encryptedFile)));
+
+            Files.write(encryptedFile, Cpabe.encrypt(pubkey, policy, plain));
+            Cpabe.decrypt(secretAlice, encryptedFile, decryptedFile);
+            Assertions.assertArrayEquals(plain, Files.readAllBytes(decryptedFile));
+        } finally {
+            Files.deleteIfExists(plainFile);
+            Files.deleteIfExists(encryptedFile);
+            Files.deleteIfExists(decryptedFile);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void filesFailure() throws Exception {
+        byte[][] byteArrays = Cpabe.setup();
+        CpabePublicKey pubkey = CpabePublicKey.load(byteArrays[Cpabe.SETUP_PUBLIC]);
+        CpabePrivateKey secretAlice = CpabePrivateKey.load(pubkey, Cpabe.keygen(byteArrays[Cpabe.SETUP_PUBLIC], byteArrays[Cpabe.SETUP_MASTER], "alice"));
+
+        byte[] plain = new byte[10 * 1024 + 7];
+        new Random(1).nextBytes(plain);
+
+        /* the layout written before payload formats were versioned */
+        BswabeCphKey keyCph = Bswabe.encrypt(SerializeUtils.unserializeBswabePub(byteArrays[Cpabe.SETUP_PUBLIC]), "alice");
+        byte[] legacy = Common.packCpabe(SerializeUtils.serializeBswabeCph(keyCph.cph), AESCoder.encrypt(keyCph.key.toBytes(), plain));
+
+        byte[] tampered = Cpabe.encrypt(pubkey, "alice", plain);
+        tampered[tampered.length / 2] ^= 1;
+
+        Path dir = Files.createTempDirectory("cpabej");
+        Path encryptedFile = dir.resolve("encrypted");
+        Path decryptedFile = dir.resolve("decrypted");
+        try {
+            Files.write(encryptedFile, legacy);
+            Cpabe.decrypt(secretAlice, encryptedFile, decryptedFile);
+            Assertions.assertArrayEquals(plain, Files.readAllBytes(decryptedFile));
+
+            Files.write(encryptedFile, tampered);
+            Assertions.assertThrows(DecryptException.class, () -> Cpabe.decrypt(secretAlice, encryptedFile, decryptedFile));
+            Assertions.assertFalse(Files.exists(decryptedFile));
+
+            Files.write(encryptedFile, Arrays.copyOf(legacy, legacy.length - 100));
+            Assertions.assertThrows(DecryptException.class, () -> Cpabe.decrypt(secretAlice, encryptedFile, decryptedFile));
+            Assertions.assertFalse(Files.exists(decryptedFile));
+        } finally {
+            Files.deleteIfExists(encryptedFile);
+            Files.deleteIfExists(decryptedFile);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void productPairings() throws Exception {
+        /* the default map computes products pair by pair, miller-affine accumulates them */
+        String[] methods = {"", "\nmethod miller-affine\n"};
+        for (String method : methods) {
+            BswabePub pub = new BswabePub();
+            BswabeMsk msk = new BswabeMsk();
+            Bswabe.setup(pub, msk, BswabeCurve.DEFAULT.params + method);
+            BswabePrv prv = Bswabe.keygen(pub, msk, new String[]{"a0", "a1", "a2", "a3", "a4"});
+            BswabePrv prvLast = Bswabe.keygen(pub, msk, new String[]{"a2", "a3", "a4"});
+
+            /* every threshold, so exponent-one and other leaves both occur */
+            for (int k = 1; k <= 5; k++) {
+                BswabeCphKey keyCph = Bswabe.encrypt(pub, "a0 a1 a2 a3 a4 " + k + "of5");
+                byte[] expected = keyCph.key.toBytes();
+                Assertions.assertArrayEquals(expected, Bswabe.decrypt(pub, prv, keyCph.cph).toBytes());
+                Assertions.assertArrayEquals(expected, Bswabe.decrypt(pub, prv, keyCph.cph, ForkJoinPool.commonPool(), 0).toBytes());
+                if (k <= 3) {
+                    Assertions.assertArrayEquals(expected, Bswabe.decrypt(pub, prvLast, keyCph.cph).toBytes());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void duplicateAttributes() throws Exception {
+        BswabePub pub = new BswabePub();
+        BswabeMsk msk = new BswabeMsk();
+        Bswabe.setup(pub, msk);
+        BswabePrv prv = Bswabe.keygen(pub, msk, new String[]{"a", "a", "b"});
+
+        /* the index keeps the first component of a repeated attribute, as the linear search did */
+        Assertions.assertEquals(0, (int) prv.index.get("a"));
+        Assertions.assertEquals(2, (int) prv.index.get("b"));
+
+        BswabePrv loaded = SerializeUtils.unserializeBswabePrv(pub, SerializeUtils.serializeBswabePrv(prv, true));
+        BswabePrv delegated = Bswabe.delegate(pub, prv, new String[]{"a"});
+        for (String policy : new String[]{"a", "a b 2of2", "a a 2of2", "b a a 3of3"}) {
+            BswabeCphKey keyCph = Bswabe.encrypt(pub, policy);
+            byte[] expected = keyCph.key.toBytes();
+            Assertions.assertArrayEquals(expected, Bswabe.decrypt(pub, prv, keyCph.cph).toBytes());
+            Assertions.assertArrayEquals(expected, Bswabe.decrypt(pub, loaded, keyCph.cph).toBytes());
+            Assertions.assertTrue(Bswabe.satisfies(keyCph.cph.p, prv.index.keySet()));
+            if (!policy.contains("b")) {
+                Assertions.assertArrayEquals(expected, Bswabe.decrypt(pub, delegated, keyCph.cph).toBytes());
+            }
+        }
+
+        BswabeDecPlan plan = Bswabe.plan(pub, prv, Bswabe.encrypt(pub, "a a 2of2").cph.p);
+        Assertions.assertArrayEquals(new int[]{0, 0}, plan.comps);
+        Assertions.assertNull(Bswabe.plan(pub, delegated, Bswabe.encrypt(pub, "b").cph.p));
+    }
+
+    @Test
+    public void wideGates() throws Exception {
+        BswabePub pub = new BswabePub();
+        BswabeMsk msk = new BswabeMsk();
+        Bswabe.setup(pub, msk);
+        BigInteger order = pub.p.getZr().getOrder();
+
+        /* gate, then the 1-based children the key holds */
+        Object[][] cases = {
+                {"1of20", new int[]{20}},
+                {"10of20", new int[]{11, 12, 13, 14, 15, 16, 17, 18, 19, 20}},
+                {"10of20", new int[]{1, 3, 5, 7, 9, 11, 13, 15, 17, 19}},
+                {"20of20", IntStream.rangeClosed(1, 20).toArray()},
+                {"3of3", new int[]{1, 2, 3}},
+        };
+        for (Object[] c : cases) {
+            String gate = (String) c[0];
+            int[] held = (int[]) c[1];
+            int n = Integer.parseInt(gate.split("of")[1]);
+
+            StringBuilder policy = new StringBuilder();
+            for (int i = 1; i <= n; i++) policy.append("x").append(i).append(' ');
+            String[] attrs = new String[held.length];
+            for (int i = 0; i < held.length; i++) attrs[i] = "x" + held[i];
+            BswabePrv prv = Bswabe.keygen(pub, msk, attrs);
+            BswabeCphKey keyCph = Bswabe.encrypt(pub, policy + gate);
+
+            Assertions.assertArrayEquals(keyCph.key.toBytes(), Bswabe.decrypt(pub, prv, keyCph.cph).toBytes());
+
+            /* each exponent against Lagrange at 0 with one modInverse per pair */
+            BswabeDecPlan plan = Bswabe.plan(pub, prv, keyCph.cph.p);
+            Assertions.assertEquals(held.length, plan.size());
+            for (int a = 0; a < plan.size(); a++) {
+                int i = plan.leaves[a] + 1;
+                BigInteger expected = BigInteger.ONE;
+                for (int j : held) {
+                    if (j == i) continue;
+                    BigInteger den = BigInteger.valueOf(j - i).mod(order);
+                    expected = expected.multiply(BigInteger.valueOf(j)).multiply(den.modInverse(order)).mod(order);
+                }
+                Assertions.assertTrue(expected.signum() != 0);
+                Assertions.assertEquals(expected, plan.exps[a].toBigInteger());
+            }
+        }
+    }
+
+    @Test
+    public void parallelEncrypt() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey pubkey = keys.pubkey;
+        CpabePrivateKey secret = keys.secret("a1 b2");
+
+        String policy = "a0 a1 a2 1of3 b0 b1 b2 3of4";
+        byte[] plain = "hello".getBytes();
+
+        byte[] encrypted = Cpabe.encrypt(pubkey.withParallelism(ForkJoinPool.commonPool(), 1), policy, plain);
+        Assertions.assertThrows(DecryptException.class, () -> Cpabe.decrypt(secret, encrypted));
+
+        CpabePrivateKey secretMore = keys.secret("a1 b0 b2");
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(secretMore, encrypted));
+    }
+
+    @Test
+    public void parallelEncryptThresholdZero() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey forking = keys.pubkey.withParallelism(ForkJoinPool.commonPool(), 0);
+        CpabePrivateKey secret = keys.secret("a");
+        byte[] plain = "hello".getBytes();
+
+        /* every subtree forks, down to single leaves */
+        for (String policy : new String[]{"a", "a b 1of2", "a b 1of2 c 2of2"}) {
+            CpabePrivateKey reader = policy.endsWith("2of2") ? keys.secret("a c") : secret;
+            Assertions.assertArrayEquals(plain, Cpabe.decrypt(reader, Cpabe.encrypt(forking, policy, plain)));
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> keys.pubkey.withParallelism(ForkJoinPool.commonPool(), -1));
+    }
+
+    @Test
+    public void parallelDecrypt() throws Exception {
+        Keys keys = new Keys();
+        CpabePrivateKey secret = keys.secret("a1 b0 b2").withParallelism(ForkJoinPool.commonPool(), 0);
+
+        byte[] plain = "hello".getBytes();
+        byte[] encrypted = Cpabe.encrypt(keys.pubkey, "a0 a1 a2 1of3 b0 b1 b2 3of4", plain);
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(secret, encrypted));
+    }
+
+    @Test
+    public void hashCache() throws Exception {
+        Keys keys = new Keys();
+        keys.secret("alice bob");
+        keys.secret("alice");
+        Cpabe.encrypt(keys.pubkey, "alice bob 2of2", "hello".getBytes());
+
+        /* keygen hashes alice and bob, then alice again; encrypt hashes both leaves */
+        Assertions.assertEquals(2L, keys.pubkey.hashCache().misses());
+        Assertions.assertEquals(3L, keys.pubkey.hashCache().hits());
+    }
+
+    @Test
+    public void compiledPolicy() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey pubkey = keys.pubkey;
+        CpabePrivateKey secret = keys.secret("a d");
+
+        /* gates consume the bottom of the stack: (a or b) and (c or d) */
+        CpabePolicy policy = CpabePolicy.compile(pubkey, "a b c d 1of2 1of2 2of2");
+        Assertions.assertEquals(4, policy.leafCount());
+
+        for (int i = 0; i < 3; i++) {
+            byte[] plain = ("hello " + i).getBytes();
+            Assertions.assertArrayEquals(plain, Cpabe.decrypt(secret, Cpabe.encrypt(policy, plain)));
+        }
+
+        CpabePrivateKey secretLess = keys.secret("a b");
+        byte[] encrypted = Cpabe.encrypt(policy, "hello".getBytes());
+        Assertions.assertThrows(DecryptException.class, () -> Cpabe.decrypt(secretLess, encrypted));
+        Assertions.assertThrows(EncryptException.class, () -> CpabePolicy.compile(pubkey, "a b 1of3"));
+    }
+
+    @Test
+    public void planCache() throws Exception {
+        Keys keys = new Keys();
+        CpabePrivateKey secret = keys.secret("a d");
+        CpabePolicy policy = CpabePolicy.compile(keys.pubkey, "a b c d 1of2 1of2 2of2");
+
+        for (int i = 0; i < 3; i++) {
+            Cpabe.decrypt(secret, Cpabe.encrypt(policy, "hello".getBytes()));
+        }
+
+        /* same key and policy shape: planned once, then served from the cache */
+        Assertions.assertEquals(1L, keys.pubkey.planCache().misses());
+        Assertions.assertEquals(2L, keys.pubkey.planCache().hits());
+    }
+
+    @Test
+    public void session() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey pubkey = keys.pubkey;
+        CpabePrivateKey secret = keys.secret("a");
+        CpabePrivateKey secretOther = keys.secret("b");
+
+        /* five messages with rotation after every two: three encapsulations */
+        CpabeSession session = CpabeSession.open(CpabePolicy.compile(pubkey, "a c 1of2"), 2, Duration.ofHours(1));
+        List<byte[]> encrypted = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            encrypted.add(Cpabe.encrypt(session, ("hello " + i).getBytes()));
+        }
+
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertArrayEquals(("hello " + i).getBytes(), Cpabe.decrypt(secret, encrypted.get(i)));
+        }
+        Assertions.assertEquals(3L, secret.sessionCache().misses());
+        Assertions.assertEquals(2L, secret.sessionCache().hits());
+
+        /* session secrets can be dropped before they expire */
+        Assertions.assertEquals(3, secret.sessionCache().size());
+        secret.sessionCache().invalidate(encrypted.get(4));
+        Assertions.assertEquals(2, secret.sessionCache().size());
+
+        Assertions.assertThrows(DecryptException.class, () -> Cpabe.decrypt(secretOther, encrypted.get(0)));
+        Assertions.assertEquals("a c 1of2", Cpabe.readPolicy(encrypted.get(0)));
+    }
+
+    @Test
+    public void sessionThreads() throws Exception {
+        Keys keys = new Keys();
+        CpabePrivateKey secret = keys.secret("a");
+
+        /* rotations race with sealing; every message must still decrypt */
+        CpabeSession session = CpabeSession.open(CpabePolicy.compile(keys.pubkey, "a b 1of2"), 3, Duration.ofHours(1));
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 24; i++) {
+            byte[] plain = ("hello " + i).getBytes();
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return Cpabe.encrypt(session, plain);
+                } catch (EncryptException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+
+        for (int i = 0; i < 24; i++) {
+            Assertions.assertArrayEquals(("hello " + i).getBytes(), Cpabe.decrypt(secret, futures.get(i).get()));
+        }
+    }
+
+    @Test
+    public void sessionRotatesOnce() throws Exception {
+        Keys keys = new Keys();
+        CpabePrivateKey secret = keys.secret("a");
+        CpabeSession session = CpabeSession.open(CpabePolicy.compile(keys.pubkey, "a"));
+        AtomicInteger encapsulations = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+
+        /* sixteen first messages at once share a single encapsulation */
+        Bswabe.setMetrics((phase, nanos, pairings, exponentiations, hashes) -> {
+            if (phase == BswabeMetrics.Phase.ENCRYPT) encapsulations.incrementAndGet();
+        });
+        List<Future<byte[]>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < 16; i++) {
+                byte[] plain = ("hello " + i).getBytes();
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return Cpabe.encrypt(session, plain);
+                }));
+            }
+            start.countDown();
+            for (Future<byte[]> future : futures) future.get();
+        } finally {
+            Bswabe.setMetrics(null);
+            pool.shutdown();
+        }
+
+        Assertions.assertEquals(1, encapsulations.get());
+        for (int i = 0; i < 16; i++) {
+            Assertions.assertArrayEquals(("hello " + i).getBytes(), Cpabe.decrypt(secret, futures.get(i).get()));
+        }
+    }
+
+    @Test
+    public void keyCache() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey pubkey = keys.pubkey;
+        CpabeKeyCache cache = new CpabeKeyCache(1, 1 << 20, Duration.ofHours(1));
+        CpabePrivateKey secret = keys.secret("a").withKeyCache(cache);
+
+        byte[] plain = "hello".getBytes();
+        byte[] first = Cpabe.encrypt(pubkey, "a", plain);
+        byte[] second = Cpabe.encrypt(pubkey, "a", plain);
+
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(secret, first));
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(secret, first));
+        Assertions.assertEquals(1L, cache.misses());
+        Assertions.assertEquals(1L, cache.hits());
+
+        /* one entry at most: the second header evicts the first */
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(secret, second));
+        Assertions.assertEquals(1L, cache.evictions());
+        Assertions.assertEquals(1, cache.size());
+
+        cache.invalidate(second);
+        Assertions.assertEquals(0, cache.size());
+        Assertions.assertEquals(0L, cache.bytes());
+
+        CpabeKeyCache shortLived = new CpabeKeyCache(16, 1 << 20, Duration.ofMillis(20));
+        CpabePrivateKey secretShort = secret.withKeyCache(shortLived);
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(secretShort, first));
+        Thread.sleep(50);
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(secretShort, first));
+        Assertions.assertEquals(2L, shortLived.misses());
+
+        shortLived.invalidate(secret);
+        Assertions.assertEquals(0, shortLived.size());
+    }
+
+    @Test
+    public void keyCacheSessions() throws Exception {
+        Keys keys = new Keys();
+        CpabeKeyCache cache = new CpabeKeyCache(16, 1 << 20, Duration.ofHours(1));
+        CpabePrivateKey secret = keys.secret("a");
+        CpabeSession session = CpabeSession.open(CpabePolicy.compile(keys.pubkey, "a"));
+        byte[] first = Cpabe.encrypt(session, "hello".getBytes());
+        session.rotate();
+        byte[] second = Cpabe.encrypt(session, "hello".getBytes());
+
+        /* without a key cache the element lands in the key's session cache, with one only in the key cache */
+        Cpabe.decrypt(secret, first);
+        Cpabe.decrypt(secret.withKeyCache(cache), second);
+        Assertions.assertEquals(1, secret.sessionCache().size());
+        Assertions.assertEquals(1, cache.size());
+
+        /* invalidating the key drops its secrets from both */
+        cache.invalidate(secret);
+        Assertions.assertEquals(0, secret.sessionCache().size());
+        Assertions.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void canDecrypt() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey pubkey = keys.pubkey;
+        byte[] secretMatch = Cpabe.keygen(keys.master, "b c");
+        byte[] secretOther = Cpabe.keygen(keys.master, "a b");
+
+        byte[] encrypted = Cpabe.encrypt(pubkey, "a   b c d 1of2 1of2 2of2", "hello".getBytes());
+        Assertions.assertEquals("a b c d 1of2 1of2 2of2", Cpabe.readPolicy(encrypted));
+        Assertions.assertEquals("a b 1of2 c d 1of2 2of2", Cpabe.readPolicy(encrypted, BswabeStackOrder.TOP));
+
+        Assertions.assertTrue(Cpabe.canDecrypt(secretMatch, encrypted));
+        Assertions.assertFalse(Cpabe.canDecrypt(secretOther, encrypted));
+        Assertions.assertTrue(Cpabe.canDecrypt(CpabePrivateKey.load(pubkey, secretMatch), encrypted));
+        Assertions.assertFalse(Cpabe.canDecrypt(CpabePrivateKey.load(pubkey, secretOther), encrypted));
+        Assertions.assertThrows(DecryptException.class, () -> Cpabe.canDecrypt(secretMatch, new byte[3]));
+    }
+
+    private static ByteBuffer nestedHeader(int depth) {
+        /* empty cs and c, then depth 1of1 gates around a leaf with empty elements */
+        ByteBuffer header = ByteBuffer.allocate(8 + 8 * depth + 21).putInt(0).putInt(0);
+        for (int i = 0; i < depth; i++) header.putInt(1).putInt(1);
+        header.putInt(1).putInt(0).putInt(1).put((byte) 'a').putInt(0).putInt(0);
+        header.flip();
+        return header;
+    }
+
+    @Test
+    public void malformedPolicyHeader() throws Exception {
+        byte[][] byteArrays = Cpabe.setup();
+        byte[] pubkey = byteArrays[Cpabe.SETUP_PUBLIC];
+        BswabePub pub = SerializeUtils.unserializeBswabePub(pubkey);
+        byte[] secret = Cpabe.keygen(pubkey, byteArrays[Cpabe.SETUP_MASTER], "a b");
+        byte[] encrypted = Cpabe.encrypt(pubkey, "a b 2of2", "hello".getBytes());
+
+        /* the root gate's k sits after the two length-prefixed elements cs and c */
+        ByteBuffer cph = Common.unpackCpabeViews(encrypted)[1];
+        int csAt = cph.position();
+        int kAt = csAt + 8 + cph.getInt(csAt) + cph.getInt(csAt + 4 + cph.getInt(csAt));
+        Assertions.assertEquals(2, cph.getInt(kAt));
+
+        for (int k : new int[]{0, 3, -1, Integer.MIN_VALUE}) {
+            cph.putInt(kAt, k);
+            Assertions.assertNull(SerializeUtils.unserializeBswabePolicy(cph.duplicate()));
+            Assertions.assertNull(SerializeUtils.unserializeBswabeCph(pub, cph.duplicate()));
+            Assertions.assertThrows(DecryptException.class, () -> Cpabe.canDecrypt(secret, encrypted));
+            Assertions.assertThrows(DecryptException.class, () -> Cpabe.decrypt(pubkey, secret, encrypted));
+        }
+
+        Assertions.assertNotNull(SerializeUtils.unserializeBswabePolicy(nestedHeader(SerializeUtils.MAX_POLICY_DEPTH)));
+        Assertions.assertNull(SerializeUtils.unserializeBswabePolicy(nestedHeader(SerializeUtils.MAX_POLICY_DEPTH + 1)));
+        Assertions.assertNull(SerializeUtils.unserializeBswabePolicy(nestedHeader(1 << 16)));
+    }
+
+    @Test
+    public void sharedCiphertext() throws Exception {
+        byte[][] byteArrays = Cpabe.setup();
+        BswabePub pub = SerializeUtils.unserializeBswabePub(byteArrays[Cpabe.SETUP_PUBLIC]);
+        BswabeMsk msk = SerializeUtils.unserializeBswabeMsk(pub, byteArrays[Cpabe.SETUP_MASTER]);
+        BswabePrv prvA = Bswabe.keygen(pub, msk, new String[]{"a", "c"});
+        BswabePrv prvB = Bswabe.keygen(pub, msk, new String[]{"b", "d"});
+
+        /* one ciphertext object decrypted concurrently with two keys */
+        BswabeCphKey keyCph = Bswabe.encrypt(pub, "a b c d 1of2 1of2 2of2");
+        List<CompletableFuture<Element>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            BswabePrv prv = i % 2 == 0 ? prvA : prvB;
+            futures.add(CompletableFuture.supplyAsync(() -> Bswabe.decrypt(pub, prv, keyCph.cph)));
+        }
+        for (CompletableFuture<Element> future : futures) {
+            Assertions.assertEquals(keyCph.key, future.get());
+        }
+    }
+
+    @Test
+    public void batchKeygen() throws Exception {
+        Keys keys = new Keys();
+        CpabePublicKey pubkey = keys.pubkey;
+
+        String policy = "alice bob 2of2";
+        byte[] plain = "hello".getBytes();
+        byte[] encrypted = Cpabe.encrypt(pubkey, policy, plain);
+
+        List<byte[]> secrets = Cpabe.keygen(keys.master, Arrays.asList("alice bob", "alice", "bob alice"));
+
+        Assertions.assertEquals(3, secrets.size());
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(CpabePrivateKey.load(pubkey, secrets.get(0)), encrypted));
+        Assertions.assertThrows(DecryptException.class, () -> Cpabe.decrypt(CpabePrivateKey.load(pubkey, secrets.get(1)), encrypted));
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(CpabePrivateKey.load(pubkey, secrets.get(2)), encrypted));
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        /* phase -> {records, pairings, exponentiations, hashes} */
+        Map<BswabeMetrics.Phase, long[]> totals = new ConcurrentHashMap<>();
+        Bswabe.setMetrics((phase, nanos, pairings, exponentiations, hashes) -> {
+            Assertions.assertTrue(nanos >= 0);
+            long[] t = totals.computeIfAbsent(phase, k -> new long[4]);
+            synchronized (t) {
+                t[0]++;
+                t[1] += pairings;
+                t[2] += exponentiations;
+                t[3] += hashes;
+            }
+        });
+        try {
+            BswabePub pub = new BswabePub();
+            BswabeMsk msk = new BswabeMsk();
+            Bswabe.setup(pub, msk);
+            BswabePrv prv = Bswabe.keygen(pub, msk, new String[]{"a", "b"});
+            BswabeCphKey keyCph = Bswabe.encrypt(pub, "a b 2of2");
+            byte[] cphBuf = SerializeUtils.serializeBswabeCph(keyCph.cph, true);
+            Element m = Bswabe.decrypt(pub, prv, SerializeUtils.unserializeBswabeCph(pub, cphBuf));
+            Assertions.assertEquals(keyCph.key, m);
+        } finally {
+            Bswabe.setMetrics(null);
+        }
+
+        Assertions.assertArrayEquals(new long[]{1, 1, 3, 0}, totals.get(BswabeMetrics.Phase.SETUP));
+        Assertions.assertArrayEquals(new long[]{1, 0, 6, 2}, totals.get(BswabeMetrics.Phase.KEYGEN));
+        Assertions.assertArrayEquals(new long[]{1, 0, 0, 2}, totals.get(BswabeMetrics.Phase.COMPILE));
+        Assertions.assertArrayEquals(new long[]{1, 0, 6, 0}, totals.get(BswabeMetrics.Phase.ENCRYPT));
+        Assertions.assertEquals(1, totals.get(BswabeMetrics.Phase.FILL_POLICY)[0]);
+        Assertions.assertEquals(1, totals.get(BswabeMetrics.Phase.PLAN)[0]);
+        /* both leaves carry a Lagrange coefficient other than one */
+        Assertions.assertArrayEquals(new long[]{1, 5, 2, 0}, totals.get(BswabeMetrics.Phase.DECRYPT));
+        Assertions.assertEquals(1, totals.get(BswabeMetrics.Phase.SERIALIZE)[0]);
+        Assertions.assertEquals(1, totals.get(BswabeMetrics.Phase.UNSERIALIZE)[0]);
+    }
+
+    @Test
+    public void curves() throws Exception {
+        byte[] plain = "hello".getBytes();
+        for (BswabeCurve curve : BswabeCurve.values()) {
+            Keys keys = new Keys(curve);
+            CpabePrivateKey secret = keys.secret("a c");
+
+            byte[] encrypted = Cpabe.encrypt(keys.pubkey, "a b 1of2 c 2of2", plain);
+            Assertions.assertArrayEquals(plain, Cpabe.decrypt(secret, encrypted), curve.name());
+        }
+
+        /* type F is asymmetric */
+        String typeF = "type f\n"
+                + "q 205523667896953300194896352429254920972540065223\n"
+                + "r 205523667896953300194895899082072403858390252929\n"
+                + "b 88927266618203556318824313551888976882604705115\n"
+                + "beta 179779551088633108107499399182332657009247669536\n"
+                + "alpha0 189341815498078510257887385859082933906531878027\n"
+                + "alpha1 204635839585863981928884340333083100840843688631\n";
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Bswabe.setup(new BswabePub(), new BswabeMsk(), typeF));
+    }
+
+    @Test
+    public void curveSizes() throws Exception {
+        /* compressed G_1 point and G_T element lengths, as documented on BswabeCurve */
+        int[][] expected = {{65, 128}, {193, 384}, {67, 132}, {129, 128}};
+        int[] cphLengths = new int[BswabeCurve.values().length];
+        for (BswabeCurve curve : BswabeCurve.values()) {
+            BswabePub pub = new BswabePub();
+            Bswabe.setup(pub, new BswabeMsk(), curve);
+            int point = ((CurveElement<?, ?>) pub.g).getLengthInBytesCompressed();
+            int gt = pub.p.getGT().newElement().getLengthInBytes();
+            Assertions.assertArrayEquals(expected[curve.ordinal()], new int[]{point, gt}, curve.name());
+            cphLengths[curve.ordinal()] = SerializeUtils.sizeOfBswabeCph(Bswabe.encrypt(pub, "a b 1of2").cph, true);
+        }
+
+        /* A1_512 headers are a little larger than A_160 ones, not the same size */
+        int a160 = cphLengths[BswabeCurve.A_160.ordinal()];
+        int a1 = cphLengths[BswabeCurve.A1_512.ordinal()];
+        Assertions.assertTrue(a1 > a160 && a1 < a160 + 32, a160 + " vs " + a1);
+    }
+
+    @Test
+    public void backends() throws Exception {
+        Assertions.assertTrue(BswabeBackend.JAVA.isAvailable());
+        if (System.getProperty(BswabeBackend.PROPERTY) == null) {
+            Assertions.assertEquals(BswabeBackend.JAVA, BswabeBackend.active());
+        }
+
+        List<BswabeBackend> available = new ArrayList<>();
+        for (BswabeBackend backend : BswabeBackend.values()) {
+            if (backend.isAvailable()) {
+                available.add(backend);
+            } else {
+                String params = BswabeCurve.DEFAULT.params;
+                byte[] pubBytes = Cpabe.setup()[Cpabe.SETUP_PUBLIC];
+                Assertions.assertThrows(IllegalStateException.class,
+                        () -> Bswabe.setup(new BswabePub(), new BswabeMsk(), params, backend));
+                Assertions.assertThrows(IllegalStateException.class,
+                        () -> SerializeUtils.unserializeBswabePub(pubBytes, backend));
+            }
+        }
+
+        /* keys and ciphertexts written on one backend open on every other, in both encodings */
+        for (BswabeBackend writer : available) {
+            BswabePub pub = new BswabePub();
+            BswabeMsk msk = new BswabeMsk();
+            Bswabe.setup(pub, msk, BswabeCurve.DEFAULT.params, writer);
+            BswabePrv prv = Bswabe.keygen(pub, msk, new String[]{"a", "b"});
+            BswabeCphKey keyCph = Bswabe.encrypt(pub, "a b c 2of3");
+
+            for (BswabeBackend reader : available) {
+                for (boolean compact : new boolean[]{false, true}) {
+                    BswabePub loaded = SerializeUtils.unserializeBswabePub(SerializeUtils.serializeBswabePub(pub, compact), reader);
+                    BswabePrv loadedPrv = SerializeUtils.unserializeBswabePrv(loaded, SerializeUtils.serializeBswabePrv(prv, compact));
+                    BswabeCph loadedCph = SerializeUtils.unserializeBswabeCph(loaded, SerializeUtils.serializeBswabeCph(keyCph.cph, compact));
+                    Element m = Bswabe.decrypt(loaded, loadedPrv, loadedCph);
+                    Assertions.assertArrayEquals(keyCph.key.toBytes(), m.toBytes());
+
+                    /* and what the reader writes back opens on the writer */
+                    BswabeCphKey back = Bswabe.encrypt(loaded, "a b 1of2");
+                    BswabeCph backCph = SerializeUtils.unserializeBswabeCph(pub, SerializeUtils.serializeBswabeCph(back.cph, compact));
+                    Assertions.assertArrayEquals(back.key.toBytes(), Bswabe.decrypt(pub, prv, backCph).toBytes());
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,82 @@
+import com.github.netsugo.cpabej.Cpabe;
+import com.github.netsugo.cpabej.CpabePolicy;
+import com.github.netsugo.cpabej.CpabePrivateKey;
+import com.github.netsugo.cpabej.CpabePublicKey;
+import com.github.netsugo.cpabej.DecryptException;
+import com.github.netsugo.cpabej.bswabe.BswabeStackOrder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Pins how nested postfix policies parse. Gates take their children from the
+ * bottom of the stack by default, as 0.1.0 did; the top is opt-in.
+ */
+public class PolicySemanticsTest {
+    private static final String NESTED = "a b 1of2 c d 1of2 2of2";
+
+    private static boolean decrypts(CpabePolicy policy, CpabePrivateKey secret) throws Exception {
+        byte[] plain = "hello".getBytes();
+        try {
+            Assertions.assertArrayEquals(plain, Cpabe.decrypt(secret, Cpabe.encrypt(policy, plain)));
+            return true;
+        } catch (DecryptException e) {
+            return false;
+        }
+    }
+
+    private static boolean decrypts(String policy, BswabeStackOrder order, String attributes) throws Exception {
+        byte[][] byteArrays = Cpabe.setup();
+        CpabePublicKey pubkey = CpabePublicKey.load(byteArrays[Cpabe.SETUP_PUBLIC]);
+        byte[] secret = Cpabe.keygen(byteArrays[Cpabe.SETUP_PUBLIC], byteArrays[Cpabe.SETUP_MASTER], attributes);
+        return decrypts(CpabePolicy.compile(pubkey, policy, order), CpabePrivateKey.load(pubkey, secret));
+    }
+
+    @Test
+    public void nestedGatesTakeTheBottomOfTheStackByDefault() throws Exception {
+        /* d and ((a or b) or c), exactly as 0.1.0 read it */
+        byte[][] byteArrays = Cpabe.setup();
+        byte[] pubkey = byteArrays[Cpabe.SETUP_PUBLIC];
+        byte[] master = byteArrays[Cpabe.SETUP_MASTER];
+        byte[] plain = "hello".getBytes();
+
+        byte[] encrypted = Cpabe.encrypt(pubkey, NESTED, plain);
+        Assertions.assertArrayEquals(plain, Cpabe.decrypt(pubkey, Cpabe.keygen(pubkey, master, "c d"), encrypted));
+        Assertions.assertThrows(DecryptException.class,
+                () -> Cpabe.decrypt(pubkey, Cpabe.keygen(pubkey, master, "a c"), encrypted));
+        Assertions.assertEquals("d a b 1of2 c 1of2 2of2", Cpabe.readPolicy(encrypted, BswabeStackOrder.TOP));
+    }
+
+    @Test
+    public void nestedGatesTakeTheTopOfTheStackOnRequest() throws Exception {
+        /* (a or b) and (c or d) */
+        Assertions.assertTrue(decrypts(NESTED, BswabeStackOrder.TOP, "a c"));
+        Assertions.assertTrue(decrypts(NESTED, BswabeStackOrder.TOP, "b d"));
+        Assertions.assertFalse(decrypts(NESTED, BswabeStackOrder.TOP, "c d"));
+    }
+
+    @Test
+    public void flatPolicyIsTheSameEitherWay() throws Exception {
+        /* every gate consumes the whole stack, so both readings agree */
+        String policy = "a b 1of2 c 2of2";
+        for (BswabeStackOrder order : BswabeStackOrder.values()) {
+            Assertions.assertTrue(decrypts(policy, order, "b c"));
+            Assertions.assertFalse(decrypts(policy, order, "a b"));
+        }
+    }
+
+    @Test
+    public void readPolicyCompilesBackToTheSameTree() throws Exception {
+        byte[][] byteArrays = Cpabe.setup();
+        CpabePublicKey pubkey = CpabePublicKey.load(byteArrays[Cpabe.SETUP_PUBLIC]);
+        String[] policies = {"a", "a b 1of2 c 2of2", NESTED, "a b c 1of2 2of2 d e 2of2 f 1of3", "a b c d e 2of3 1of2 2of2 f 2of2"};
+
+        for (String policy : policies) {
+            byte[] encrypted = Cpabe.encrypt(CpabePolicy.compile(pubkey, policy, BswabeStackOrder.TOP), "hello".getBytes());
+            Assertions.assertEquals(policy, Cpabe.readPolicy(encrypted, BswabeStackOrder.TOP));
+
+            /* the default rendering names the same tree in bottom-of-stack order */
+            byte[] again = Cpabe.encrypt(CpabePolicy.compile(pubkey, Cpabe.readPolicy(encrypted)), "hello".getBytes());
+            Assertions.assertEquals(policy, Cpabe.readPolicy(again, BswabeStackOrder.TOP));
+        }
+    }
+}